@@ -0,0 +1,257 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *    Graduate School for Cellular and Molecular Sciences,
+ *    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the steps of a run done in Fiji: tiling (Blob.populateBlob, canvasresize, saveAsPNG) 
+ * and reassembly (Blob.assembleSlice, tileSegmentation), to see if a new ImageJ version or a change makes them slower.
+ * 
+ * Stacks are made of the 224x224 patches of the training data zips at the root of the repository, 
+ * 4x4 patches per slice, or of synthetic images of the same size. The pixel size changes the upscaling before tiling, 
+ * and so the number of tiles: 0.405 um is the training pixel size, one tile per patch. 
+ * Segmented tiles are the raw tiles, as returned by a model that does nothing.
+ * readSegmentedTile is private, and is measured by assembleSlice, which decodes all tiles of a slice with it.
+ * <p>
+ * Run from the repository root with: mvn -Pjmh test, see the jmh profile in pom.xml. 
+ * Allocation rates are given by the gc profiler, on by default.
+ * 
+ * @author Diego Morone
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class BlobBenchmark {
+
+    private static final int PATCH = 224;       // size of the training patches
+    private static final int MONTAGE = 4;       // patches per row and column of a slice
+    private static final double REFERENCE = 0.405; // training pixel size, as in Blob.java
+
+    @Param({"synthetic", "training_data_VAL.zip", "training_data_MDA-MB-231.zip"})
+    public String data;
+
+    @Param({"1", "8"})
+    public int frames;
+
+    @Param({"0.2025", "0.405", "0.81"})
+    public double pixelsize;
+
+    private ImagePlus stack;
+    private Blob segmented;
+    private ImageProcessor resized;
+    private BufferedImage tile;
+    private int paddedwidth;
+    private int paddedheight;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stack = createStack(data, frames, pixelsize);
+
+        // Blob with all tiles segmented, for reassembly
+        segmented = new Blob();
+        segmented.populateBlob(stack);
+        TileStore raw = segmented.getRawTiles();
+        for (int index : raw.indices()) {
+            segmented.addSegmentedTile(raw.get(index), index);
+        }
+
+        // First slice as rescaled by populateBlob, and its first tile
+        int tilesize = segmented.getTileSize();
+        double magnification = pixelsize / REFERENCE;
+        ImageProcessor ip = stack.getStack().getProcessor(1);
+        ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+        resized = ip.resize((int)Math.ceil(magnification*ip.getWidth()), (int)Math.ceil(magnification*ip.getHeight()));
+        paddedwidth = (resized.getWidth() + tilesize - 1) / tilesize * tilesize;
+        paddedheight = (resized.getHeight() + tilesize - 1) / tilesize * tilesize;
+
+        ImageProcessor cropped = resized.createProcessor(tilesize, tilesize);
+        cropped.insert(resized, 0, 0);
+        tile = cropped.getBufferedImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        segmented.close();
+    }
+
+    @Benchmark
+    public int populateBlob() {
+        Blob blob = new Blob();
+        blob.populateBlob(stack);
+        int size = blob.getRawTiles().size();
+        blob.close();
+        return size;
+    }
+
+    @Benchmark
+    public ImageProcessor canvasresize() {
+        return segmented.canvasresize(resized, paddedwidth, paddedheight);
+    }
+
+    @Benchmark
+    public byte[] saveAsPNG() {
+        return Blob.saveAsPNG(tile);
+    }
+
+    @Benchmark
+    public ImageProcessor assembleSlice() {
+        return segmented.assembleSlice(0);
+    }
+
+    @Benchmark
+    public ImagePlus tileSegmentation() {
+        return segmented.tileSegmentation();
+    }
+
+    /*
+     * Stack of frames, each a montage of patches of the data, with the pixel size given
+     */
+    static ImagePlus createStack(String data, int frames, double pixelsize) throws IOException {
+        List<ImageProcessor> patches = "synthetic".equals(data) ? createPatches(MONTAGE*MONTAGE) : readPatches(data);
+
+        ImageStack ims = new ImageStack(MONTAGE*PATCH, MONTAGE*PATCH);
+        int next = 0;
+        for (int f = 0; f < frames; f++) {
+            ImageProcessor slice = new ByteProcessor(MONTAGE*PATCH, MONTAGE*PATCH);
+            for (int y = 0; y < MONTAGE; y++) {
+                for (int x = 0; x < MONTAGE; x++) {
+                    slice.insert(patches.get(next++ % patches.size()), x*PATCH, y*PATCH);
+                }
+            }
+            ims.addSlice(slice);
+        }
+
+        ImagePlus imp = new ImagePlus(data, ims);
+        imp.setDimensions(1, 1, frames);
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = pixelsize;
+        calibration.pixelHeight = pixelsize;
+        calibration.setUnit("micron");
+        imp.setCalibration(calibration);
+        return imp;
+    }
+
+    /*
+     * 8-bit patches of the image folder of a training data zip, in name order
+     */
+    private static List<ImageProcessor> readPatches(String name) throws IOException {
+        File file = new File(name);
+        if (!file.isFile()) file = new File(System.getProperty("widu.data", "."), name);
+        if (!file.isFile()) throw new IOException("training data not found: " + name + ", run from the repository root");
+
+        List<ImageProcessor> patches = new ArrayList<ImageProcessor>();
+        try (ZipFile zip = new ZipFile(file)) {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                String entry = e.nextElement().getName();
+                if (entry.startsWith("image/") && entry.toLowerCase().endsWith(".png")) names.add(entry);
+            }
+            Collections.sort(names);
+            for (String entry : names) {
+                try (InputStream in = zip.getInputStream(zip.getEntry(entry))) {
+                    BufferedImage bi = ImageIO.read(in);
+                    if (bi != null) patches.add(new ImagePlus(entry, bi).getProcessor().convertToByte(false));
+                }
+            }
+        }
+        if (patches.isEmpty()) throw new IOException("no patches in " + file);
+        return patches;
+    }
+
+    /*
+     * Smooth patterns with noise, so that tiles are not uniform and compress like real images
+     */
+    private static List<ImageProcessor> createPatches(int n) {
+        Random random = new Random(42);
+        List<ImageProcessor> patches = new ArrayList<ImageProcessor>();
+        for (int i = 0; i < n; i++) {
+            ImageProcessor ip = new ByteProcessor(PATCH, PATCH);
+            double fx = 4 + random.nextDouble()*12;
+            double fy = 4 + random.nextDouble()*12;
+            for (int y = 0; y < PATCH; y++) {
+                for (int x = 0; x < PATCH; x++) {
+                    double value = 128 + 50*Math.sin(x/fx)*Math.cos(y/fy) + 12*random.nextGaussian();
+                    ip.set(x, y, (int)Math.max(0, Math.min(255, value)));
+                }
+            }
+            patches.add(ip);
+        }
+        return patches;
+    }
+}
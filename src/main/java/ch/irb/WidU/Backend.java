@@ -0,0 +1,134 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.Prefs;
+
+/**
+ * Where the tiles of a blob are segmented: on a remote server over SSH, with files (SSHBackend.java) 
+ * or streamed to a service (StreamBackend.java), on a server sharing a folder with this computer (SharedFolderBackend.java), or inside ImageJ on the CPU (LocalBackend.java).
+ * 
+ * Segmentation is split in submit and collect, so that the streaming pipeline can submit a blob
+ * while the previous one is still being segmented. Backends segment the raw tiles still in the blob 
+ * (see ResultCache.java) and add the results as segmented tiles.
+ * 
+ * @author Diego Morone
+ */
+public interface Backend {
+
+    /** Backend choices of the Wid-U settings */
+    String SSH = "SSH server";
+    String STREAM = "SSH tile stream";
+    String SHARED = "Shared folder";
+    String LOCAL = "Local CPU (ONNX)";
+
+    /**
+     * Start segmentation of the raw tiles of a blob. May return before the segmentation is done
+     * 
+     * @param blob  blob with raw tiles
+     */
+    void submit(Blob blob);
+
+    /**
+     * Wait for the segmentation of a submitted blob, and add the results to it
+     * 
+     * @param blob  blob submitted for segmentation
+     * @return true if everything goes fine
+     */
+    boolean collect(Blob blob);
+
+    /**
+     * Segment the raw tiles of a blob and wait for the results
+     * 
+     * @param blob  blob with raw tiles
+     * @return true if everything goes fine
+     */
+    default boolean segment(Blob blob) {
+        submit(blob);
+        return collect(blob);
+    }
+
+    /**
+     * Identity of the model used, e.g. for the result cache
+     * 
+     * @return model identity
+     */
+    String getModel();
+
+    /**
+     * Release connections or models. The backend cannot be used afterwards
+     */
+    void close();
+
+    /**
+     * Create the backend selected in the Wid-U settings
+     * 
+     * @return new backend
+     */
+    static Backend create() {
+        String backend = Prefs.get("ch.irb.widu.backend", SSH);
+        if (LOCAL.equals(backend)) {
+            return new LocalBackend(Prefs.get("ch.irb.widu.onnxmodel", ""));
+        }
+
+        String hostname = Prefs.get("ch.irb.widu.hostname", "localhost");
+        if (SHARED.equals(backend)) {
+            return new SharedFolderBackend(Prefs.get("ch.irb.widu.sharedfolder", ""), 
+                Prefs.get("ch.irb.widu.serverfolder", ""), 
+                hostname, 
+                Integer.parseInt(Prefs.get("ch.irb.widu.queueport", "65432")),
+                Boolean.parseBoolean(Prefs.get("ch.irb.widu.packed", "false")));
+        }
+
+        Integer port = Integer.parseInt(Prefs.get("ch.irb.widu.port", "22"));
+        String username = Prefs.get("ch.irb.widu.username", "");
+        String cachefolder = Prefs.get("ch.irb.widu.cachefolder", "");
+        String command = Prefs.get("ch.irb.widu.command", "");
+        if (STREAM.equals(backend)) {
+            return new StreamBackend(hostname, port, username, cachefolder,
+                Integer.parseInt(Prefs.get("ch.irb.widu.streamport", "65433")),
+                Integer.parseInt(Prefs.get("ch.irb.widu.streamwindow", "64")));
+        }
+        return new SSHBackend(hostname, port, username, cachefolder, command);
+    }
+}
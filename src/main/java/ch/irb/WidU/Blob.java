@@ -43,27 +43,32 @@ package ch.irb.WidU;
 import ij.*;
 import ij.measure.Calibration;
 import ij.plugin.HyperStackConverter;
-import ij.process.ImageConverter;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.image.*;
-import java.awt.*;
 import java.io.*;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
- * This class creates the object Blob, which is composed of an hashmap of tiles and their ids
- * for the input image, a similar hashmap for the segmented image, an automatically-generated job id
- * and properties related to those images.
+ * This class creates the object Blob, which is composed of a store of tiles addressed by their index
+ * for the input image, a similar store for the segmented image, an automatically-generated job id
+ * and properties related to those images. Tile names are only used for transfers.
  * 
  * @author Diego Morone
  */
 public class Blob {
 
-    private HashMap<String, byte[]> blobtiles;
-    private HashMap<String, byte[]> segmentedtiles;
+    private TileStore blobtiles;
+    private TileStore segmentedtiles;
+    private int[] aliases; // for uniform tiles, index of the tile with the same content that is sent instead. -1 otherwise
     private String id;
     private String title;
     private Calibration calibration;
@@ -71,20 +76,21 @@ public class Blob {
     private Integer height;
     private Integer nFrames;
     private Integer nSlices;
+    private Integer firstFrame;
     private Double magnification;
     private Integer dstWidth;
     private Integer dstHeight; 
     private Integer ntilesx;
     private Integer ntilesy;
+    private int threads;
     final private Integer tilesize = 224; // Based on training tile size
     final private Double referencepixelsize = 0.405; // Based on training pixel size
     
 
     // Constructor
     public Blob () {
-        this.blobtiles = new HashMap<String, byte[]>();
-        this.segmentedtiles= new HashMap<String, byte[]>();
         this.id = generateID();
+        this.threads = Parallel.getThreads();
     }
 
     private String generateID() {
@@ -92,6 +98,15 @@ public class Blob {
         return newid;
     }
 
+    /**
+     * Set the number of threads used for tiling and reassembly. Defaults to the Wid-U settings
+     * 
+     * @param threads   number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     /**
      * Simple method to return the associated UUID for a blob
      * 
@@ -102,26 +117,160 @@ public class Blob {
     }
 
     /**
-     * This method return an hashamp of tiles for the raw (unsegmented) image. 
-     * Unique names correspond to filenames and are in the form 
+     * Take the UUID of a previous job with the same tiles, to resume it. See JobManifest.java
+     * 
+     * @param id    UUID of the previous job
+     */
+    void setID(String id) {
+        this.id = id;
+    }
+
+    /**
+     * This method return the store of tiles for the raw (unsegmented) image. 
+     * Tiles are addressed by their index, see getTileIndex and getTileName.
+     * 
+     * @return TileStore  thread-safe store of tiles
+     */
+    public TileStore getRawTiles() {
+        return blobtiles;
+    }
+
+    /**
+     * This method return the store of tiles for the segmented image, addressed as the raw tiles.
+     * Uniform tiles that were not sent have no segmented tile of their own.
+     * 
+     * @return TileStore  thread-safe store of tiles
+     */
+    public TileStore getSegmentedTiles() {
+        return segmentedtiles;
+    }
+
+    /**
+     * @return title of the source image
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Number of tile indices of this blob, including uniform tiles that are not sent
+     * 
+     * @return number of tiles
+     */
+    public int getTileCount() {
+        return nFrames*nSlices*ntilesx*ntilesy;
+    }
+
+    /**
+     * Description of the images in the blob, sent along with the tiles. 
+     * Only blobs of several images have one, see MultiBlob.java
+     * 
+     * @return manifest text, or null if the blob has no manifest
+     */
+    public String getManifest() {
+        return null;
+    }
+
+    /**
+     * @return size in pixels of the side of the square tiles
+     */
+    public int getTileSize() {
+        return tilesize;
+    }
+
+    /**
+     * Tile size and pixel size the tiles are made for, e.g. to tell apart results of different tilings
+     * 
+     * @return String   tile parameters
+     */
+    public String getTileParameters() {
+        return tilesize + "px@" + referencepixelsize + "um";
+    }
+
+    /**
+     * Index of a tile in the tile stores of this blob. Tiles of a slice are contiguous,
+     * and slices are in the same order as in the window of the source image
+     * 
+     * @param slice index of the slice in this blob, starting from 0
+     * @param xtile column of the tile
+     * @param ytile row of the tile
+     * @return index of the tile
+     */
+    public int getTileIndex(int slice, int xtile, int ytile) {
+        return (slice*ntilesx + xtile)*ntilesy + ytile;
+    }
+
+    /**
+     * Unique name of a tile, used as filename for transfers. Names are in the form 
      * <stack index>-<x position>-<y position>.png with 4 leading zeros. 
      * For example: 0001-0224-0244.png
      * 
-     * @return HashMap<String, byte[]>  hashmap of tiles with their unique name
+     * @param index index of the tile
+     * @return unique name of the tile
      */
-    public HashMap<String, byte[]> getRawTiles() {
-        return blobtiles;
+    public String getTileName(int index) {
+        int slice = index / (ntilesx*ntilesy);
+        int xtile = (index / ntilesy) % ntilesx;
+        int ytile = index % ntilesy;
+
+        StringBuilder name = new StringBuilder(18);
+        pad4(name, (firstFrame-1)*nSlices + slice + 1).append('-');
+        pad4(name, xtile*tilesize).append('-');
+        pad4(name, ytile*tilesize).append(".png");
+        return name.toString(); // 0001-0000-0000.png
+    }
+
+    /**
+     * Index of a tile from its unique name, see getTileName
+     * 
+     * @param name unique name of the tile
+     * @return index of the tile, or -1 if the name is not valid for this blob
+     */
+    public int getTileIndex(String name) {
+        try {
+            String[] parts = name.substring(0, name.lastIndexOf('.')).split("-");
+            int slice = Integer.parseInt(parts[0]) - (firstFrame-1)*nSlices - 1;
+            int xtile = Integer.parseInt(parts[1]) / tilesize;
+            int ytile = Integer.parseInt(parts[2]) / tilesize;
+            if (slice < 0 || slice >= nFrames*nSlices || xtile >= ntilesx || ytile >= ntilesy) return -1;
+            return getTileIndex(slice, xtile, ytile);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Append a number with at least 4 digits, with leading zeros
+     */
+    private static StringBuilder pad4(StringBuilder sb, int value) {
+        for (int d = 1000; d > 1 && value < d; d = d / 10) {
+            sb.append('0');
+        }
+        return sb.append(value);
     }
 
     /**
      * Function upscales the image to a specified pixel size and creates tiles with defined tilesize.
      * Remainder on the left and bottom corners is treated by increasing the canvas size with black pixels.
      * <p>
-     * Tiles are then added to the blob
+     * Tiles are then added to the blob. Of all uniform tiles with the same value (e.g. background), only the first
+     * is added, and the others reuse its segmentation
      *  
      * @param raw is the source image
      */
     public void populateBlob(ImagePlus raw) {
+        populateBlob(raw, 1, raw.getNFrames());
+    }
+
+    /**
+     * Same as populateBlob(ImagePlus), but only tiles the frames between firstFrame and lastFrame (both included).
+     * Tile names keep the stack index of the source image, so that windows of the same image never collide.
+     * 
+     * @param raw           is the source image
+     * @param firstFrame    first frame of the window, starting from 1
+     * @param lastFrame     last frame of the window
+     */
+    public void populateBlob(ImagePlus raw, int firstFrame, int lastFrame) {
 
         this.calibration = raw.getCalibration();
         this.title = raw.getTitle();
@@ -129,51 +278,88 @@ public class Blob {
         // Determine # of tiles x,y
         this.width = raw.getWidth();
         this.height = raw.getHeight();
-        this.nFrames = raw.getNFrames();
+        this.firstFrame = firstFrame;
+        this.nFrames = lastFrame - firstFrame + 1;
         this.nSlices = raw.getNSlices();
 
         this.magnification = calibration.pixelWidth/referencepixelsize; 
         this.dstWidth = (int)Math.ceil(magnification*width);
         this.dstHeight = (int)Math.ceil(magnification*height);
-        this.ntilesx = ((int)(dstWidth/tilesize))+1;
-        this.ntilesy = ((int)(dstHeight/tilesize))+1;
+        this.ntilesx = (dstWidth + tilesize - 1)/tilesize;
+        this.ntilesy = (dstHeight + tilesize - 1)/tilesize;
 
-        ImageStack ims = raw.getImageStack();
+        int nTiles = ntilesx*ntilesy;
+        this.blobtiles = TileStore.create(nFrames*nSlices*nTiles);
+        this.segmentedtiles = TileStore.create(nFrames*nSlices*nTiles);
+        this.aliases = new int[nFrames*nSlices*nTiles];
 
-        for (int j = 1; j <= nFrames; j++ ) {
-            for (int i =1; i <= nSlices; i++) {
-                // get stack index
-                Integer index = raw.getStackIndex(1, i, j);
-                ImageProcessor rawp = ims.getProcessor(index);
+        // First uniform tile found for each value, the only one sent
+        Map<Float, Integer> uniformtiles = new ConcurrentHashMap<Float, Integer>();
 
-                // Rescale
-                rawp.setInterpolationMethod(ImageProcessor.BILINEAR);
-                rawp = rawp.resize(dstWidth, dstHeight);
-
-                //add black pixels on right and bottom to fit in 224x244 format
-                rawp = canvasresize(rawp, ntilesx*tilesize, ntilesy*tilesize); 
+        ImageStack ims = raw.getImageStack();
 
-                // do the crops
-                for (int w=0; w < tilesize*ntilesx; w = w + tilesize) {
-                    for (int u=0; u < tilesize*ntilesy; u = u + tilesize) {
+        // Slices, and tiles of each slice, are processed in parallel
+        Parallel.forEach(threads, nFrames*nSlices, s -> {
+            // get stack index
+            Integer index = raw.getStackIndex(1, (s % nSlices) + 1, firstFrame + s / nSlices);
+            ImageProcessor rawp;
+            synchronized (ims) { // virtual stacks read from disk
+                rawp = ims.getProcessor(index);
+            }
 
-                        rawp.setRoi(w, u, tilesize, tilesize);
-                        ImageProcessor cropped = rawp.crop();
+            // Rescale
+            RunReport.Span resize = RunReport.begin(RunReport.Phase.RESIZE);
+            rawp.setInterpolationMethod(ImageProcessor.BILINEAR);
+            rawp = rawp.resize(dstWidth, dstHeight);
+
+            //add black pixels on right and bottom to fit in 224x244 format
+            ImageProcessor padded = canvasresize(rawp, ntilesx*tilesize, ntilesy*tilesize); 
+            resize.end(nTiles, 0);
+
+            // do the crops
+            Parallel.forEach(threads, nTiles, t -> {
+                int w = (t / ntilesy) * tilesize;
+                int u = (t % ntilesy) * tilesize;
+                int tileindex = s*nTiles + t; // same as getTileIndex(s, w/tilesize, u/tilesize)
+
+                // Insert with negative offset instead of setRoi/crop, which is not safe with concurrent threads
+                ImageProcessor cropped = padded.createProcessor(tilesize, tilesize);
+                cropped.insert(padded, -w, -u);
+
+                // Uniform tiles (background, padding) give the same result for the same value, segment only one of them
+                aliases[tileindex] = -1;
+                Float value = uniformValue(cropped);
+                if (value != null) {
+                    Integer first = uniformtiles.putIfAbsent(value, tileindex);
+                    if (first != null) {
+                        aliases[tileindex] = first;
+                        return;
+                    }
+                }
 
-                        BufferedImage croppedImage = cropped.getBufferedImage();
+                RunReport.Span encode = RunReport.begin(RunReport.Phase.ENCODE);
+                BufferedImage croppedImage = cropped.getBufferedImage();
+                byte[] png = saveAsPNG(croppedImage);
+                encode.end(1, png.length);
 
-                        this.addRaw(saveAsPNG(croppedImage), index, w, u); //add as PNG to this blob
+                blobtiles.put(tileindex, png); //add as PNG to this blob
+            });
+        });
 
-                    }
-                }
+        int skipped = aliases.length - blobtiles.size();
+        if (skipped > 0) IJ.log("Skipping " + skipped + " uniform tiles out of " + aliases.length);
+    }
 
-            }
+    /*
+     * Value of all pixels of a tile, or null if pixels are not all the same
+     */
+    private static Float uniformValue(ImageProcessor ip) {
+        int n = ip.getPixelCount();
+        float value = ip.getf(0);
+        for (int i = 1; i < n; i++) {
+            if (ip.getf(i) != value) return null;
         }
-    }
-        
-    private void addRaw(byte[] f, Integer stackindex, Integer xtile, Integer ytile) {
-        String name = String.format("%4s-%4s-%4s.png", stackindex, xtile, ytile).replace(" ", "0"); // 0001-0000-0000.png
-        blobtiles.put(name, f);
+        return value;
     }
 
     /**
@@ -184,102 +370,189 @@ public class Blob {
      */
     public ImagePlus tileSegmentation() {
 
-        // Create an empty stack
-        ImageStack outstk = new ImageStack(width, height);
+        // Create an empty stack with all slices, filled in parallel
+        ImageStack outstk = new ImageStack(width, height, nFrames*nSlices);
 
-        for (int i =1; i <= nFrames; i++) {
-            for (int j= 1; j <= nSlices; j++) {
+        Parallel.forEach(threads, nFrames*nSlices, s -> {
 
-                Integer stackindex = (i-1)*nSlices + j ;
+            // Add the rescaled slice to stack
+            outstk.setPixels(assembleSlice(s).getPixels(), s + 1);
 
-                // Create back mosaic for this slice
-                BufferedImage outbi = new BufferedImage( dstWidth , dstHeight , BufferedImage.TYPE_INT_RGB);
-                Graphics2D g = (Graphics2D) outbi.getGraphics();
-             
-                for (int w=0; w < ntilesx; w++) { 
-                    for (int u=0; u < ntilesy; u++) {
+        });
 
-                        String key = String.format("%4s-%4s-%4s.png", stackindex, w*tilesize, u*tilesize).replace(" ", "0");
-                        Image tile = readSegmentedTile(key);
-                       
-                        g.drawImage(tile, w * tilesize, u * tilesize, null); // this creates an RGB, but we will convert to 8bit later
-                        
-                    }
-                }
+        // Convert stack to ImagePlus. Slices are already 8bit
+        ImagePlus out = new ImagePlus("WIDU_"+title, outstk);
+
+        // Set units and dimensions
+        if (nSlices * nFrames > 1) {
+            out = HyperStackConverter.toHyperStack(out, 1, nSlices, nFrames, "Color");
+        }
+        out.setCalibration(calibration);
+
+        return out;
 
-                g.dispose();
+    }
 
-                // Downscale slice
-                ImagePlus slice = new ImagePlus();
-                slice.setImage(outbi);
-                ImageProcessor slicep = slice.getProcessor();
+    /**
+     * Stiches the segmented images of this blob into a preallocated 8-bit stack of the whole image.
+     * Slices are written at the stack index they had in the source image, so that blobs covering
+     * different frame windows can fill the same stack.
+     * 
+     * @param outstk    8-bit stack with the dimensions of the source image
+     */
+    public void tileSegmentation(ImageStack outstk) {
 
-                // Throw away the black pixels on right and bottom sides (see populate blob)
-                slicep = canvasresize(slicep, dstWidth, dstHeight);
+        // Slices are independent, reassemble them in parallel
+        Parallel.forEach(threads, nFrames*nSlices, s -> {
 
-                // Resize
-                slicep.setInterpolationMethod(ImageProcessor.BILINEAR);
-                slicep = slicep.resize(width, height);
-                
-                // Add the rescaled slice to stack
-                outstk.addSlice(slicep);
-                
+            Integer stackindex = (firstFrame-1)*nSlices + s + 1;
+            Object pixels = assembleSlice(s).getPixels();
 
+            // Copy in place if the slice exists, e.g. if the stack is already displayed
+            Object current = outstk.getPixels(stackindex);
+            if (current != null) {
+                System.arraycopy(pixels, 0, current, 0, width*height);
+            } else {
+                outstk.setPixels(pixels, stackindex);
             }
-        }
 
-        // Convert stack to ImagePlus
-        ImagePlus out = new ImagePlus("WIDU_"+title, outstk);
-        ImageProcessor outp = out.getProcessor();
+        });
+    }
 
-        // Convert RGB imageplus to 8bit
-        if (outp.getBitDepth()==24 && outp.isGrayscale()) {
-            new ImageConverter(out).convertToGray8();
-        }
+    /**
+     * Same as tileSegmentation(), but slices are assembled only when displayed, see SegmentedVirtualStack.
+     * The tiles of the blob are released when the returned image is closed.
+     * 
+     * @param cachesize maximum number of assembled slices kept in memory
+     * @return  ImagePlus of the segmented image, with same dimensions and calibration as input image
+     */
+    public ImagePlus virtualSegmentation(int cachesize) {
+
+        SegmentedVirtualStack outstk = new SegmentedVirtualStack(this, width, height, nFrames*nSlices, cachesize);
+        ImagePlus out = new ImagePlus("WIDU_"+title, outstk);
 
         // Set units and dimensions
         if (nSlices * nFrames > 1) {
-            out = HyperStackConverter.toHyperStack(out, 1, nSlices, nFrames, "Color");
+            out.setDimensions(1, nSlices, nFrames);
+            out.setOpenAsHyperStack(true);
         }
         out.setCalibration(calibration);
 
+        // Tiles are needed until the image is closed
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {}
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {}
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                if (imp == out) {
+                    ImagePlus.removeImageListener(this);
+                    close();
+                }
+            }
+        });
+
         return out;
+    }
+
+    /*
+     * Support function for creating back the mosaic of one slice and restoring its original size.
+     * Tiles are decoded straight into the pixels of an 8-bit processor, without the padding on right and bottom sides
+     * 
+     * @param s index of the slice in this blob, starting from 0
+     * @return 8-bit image processor of the segmented slice
+     */
+    ImageProcessor assembleSlice(int s) {
+
+        RunReport.Span span = RunReport.begin(RunReport.Phase.REASSEMBLY);
+
+        // Create back mosaic for this slice
+        byte[] pixels = new byte[dstWidth*dstHeight];
+     
+        for (int w=0; w < ntilesx; w++) { 
+            for (int u=0; u < ntilesy; u++) {
+
+                readSegmentedTile(getTileIndex(s, w, u), pixels, w * tilesize, u * tilesize);
+                
+            }
+        }
+
+        ImageProcessor slicep = new ByteProcessor(dstWidth, dstHeight, pixels);
+
+        // Resize
+        slicep.setInterpolationMethod(ImageProcessor.BILINEAR);
+        slicep = slicep.resize(width, height);
 
+        span.end(ntilesx*ntilesy, 0);
+        return slicep;
     }
 
     /*
-     * Support function for reading pixels of a segmented remote image from a specified hashkey
-     * and converting to a java image. 
+     * Support function for reading pixels of a segmented remote image from a specified tile index
+     * and copying them into the pixels of a slice of size dstWidth x dstHeight.
+     * Pixels out of the slice (padding, see populateBlob) are skipped. 
+     * Uniform tiles that were not sent are read from the tile they are an alias of.
      * 
-     * @param hashkey of tile
-     * @return Java RGB image
+     * @param index of tile
+     * @param pixels 8-bit pixels of the slice
+     * @param x position of the tile in the slice
+     * @param y position of the tile in the slice
      */
-    private Image readSegmentedTile(String hashkey) {
+    private void readSegmentedTile(int index, byte[] pixels, int x, int y) {
 
-        Image out = null;
+        int w = Math.min(tilesize, dstWidth - x);
+        int h = Math.min(tilesize, dstHeight - y);
+        if (w <= 0 || h <= 0) return; // only padding
 
         try {
-            if (segmentedtiles.containsKey(hashkey)) {
-                InputStream input = new ByteArrayInputStream(segmentedtiles.get(hashkey));
-                out = ImageIO.read(input);
-            } else throw new IOException("no key found");
+            // Uniform tiles share the result of the tile sent in their place
+            byte[] data = segmentedtiles.get(aliases[index] >= 0 ? aliases[index] : index);
+            if (data == null) throw new IOException("no tile found: " + getTileName(index));
+
+            // In-memory input stream, closed by ImageIO.read
+            BufferedImage tile = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+            if (tile == null) throw new IOException("cannot decode tile: " + getTileName(index));
+
+            w = Math.min(w, tile.getWidth());
+            h = Math.min(h, tile.getHeight());
+
+            if (tile.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                // 8-bit results from the U-Net, copy the rows as they are
+                Raster raster = tile.getRaster();
+                ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+                byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = sm.getScanlineStride();
+                int offset = sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(src, offset + row*stride, pixels, (y+row)*dstWidth + x, w);
+                }
+            } else {
+                // Any other format, same as converting to RGB and then to 8-bit
+                ImageProcessor tilep = new ColorProcessor(tile).convertToByte(false);
+                byte[] src = (byte[]) tilep.getPixels();
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(src, row*tilep.getWidth(), pixels, (y+row)*dstWidth + x, w);
+                }
+            }
         } catch (IOException e) {
             IJ.log(e.getMessage());
         }
-
-        return out;
     }
 
     /*
      * Support function for converting raw image to PNG,
      * for use with U-Net segmentation
      */
-    private static byte[] saveAsPNG(BufferedImage bi) {
+    static byte[] saveAsPNG(BufferedImage bi) {
 
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
-        try {
-            ImageIO.write(bi, "png", bos);
+        // In-memory output stream: the default one caches every tile in a temporary file
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(bos)) {
+            ImageIO.write(bi, "png", ios);
         } catch (IOException e) {
             IJ.error(e.getMessage());
         }
@@ -296,7 +569,8 @@ public class Blob {
      * @param String name of the tile  
      */
     public void addRawTile (byte[] f, String name ) {
-        blobtiles.put(name, f);
+        int index = getTileIndex(name);
+        if (index >= 0) blobtiles.put(index, f);
     }
 
     /**
@@ -306,7 +580,27 @@ public class Blob {
      * @param String name of the tile  
      */
     public void addSegmentedTile(byte[] f, String name) {
-        segmentedtiles.put(name, f);
+        int index = getTileIndex(name);
+        if (index >= 0) segmentedtiles.put(index, f);
+    }
+
+    /**
+     * Add tile from segmented image to this blob
+     * 
+     * @param byte[] array of pixel values
+     * @param int index of the tile  
+     */
+    public void addSegmentedTile(byte[] f, int index) {
+        segmentedtiles.put(index, f);
+    }
+
+    /**
+     * Release raw and segmented tiles of this blob, e.g. files of disk-backed tile stores.
+     * The blob cannot be segmented anymore afterwards.
+     */
+    public void close() {
+        if (blobtiles != null) blobtiles.close();
+        if (segmentedtiles != null) segmentedtiles.close();
     }
 
     /**
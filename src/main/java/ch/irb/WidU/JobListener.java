@@ -0,0 +1,120 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+/**
+ * Receives the events of a remote segmentation job, e.g. to show progress to the user.
+ * Events are sent by the server when the command is run with --wait (see client.py).
+ * 
+ * @author Diego Morone
+ */
+public interface JobListener {
+
+    /**
+     * The job is waiting in the server queue
+     * 
+     * @param blob      blob being segmented
+     * @param position  number of jobs ahead in the queue
+     */
+    void queued(Blob blob, int position);
+
+    /**
+     * Some tiles of the job have been segmented
+     * 
+     * @param blob  blob being segmented
+     * @param done  number of tiles segmented so far
+     * @param total total number of tiles of the job
+     */
+    void progress(Blob blob, int done, int total);
+
+    /**
+     * The job is done, and results can be retrieved
+     * 
+     * @param blob  blob segmented
+     */
+    void done(Blob blob);
+
+    /**
+     * Parse an event line sent by the server (see server.py) and notify the listener.
+     * Lines that are not QUEUED or PROGRESS events are ignored
+     * 
+     * @param listener  listener to notify
+     * @param blob      blob being segmented
+     * @param line      line sent by the server
+     */
+    static void dispatch(JobListener listener, Blob blob, String line) {
+        String[] parts = line.trim().split("\\s+");
+        try {
+            if (parts[0].equals("QUEUED") && parts.length > 1) {
+                listener.queued(blob, Integer.parseInt(parts[1]));
+            } else if (parts[0].equals("PROGRESS") && parts.length > 2) {
+                listener.progress(blob, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            }
+        } catch (NumberFormatException e) {
+            // not an event
+        }
+    }
+
+    /**
+     * Default listener, showing job events in the ImageJ status bar
+     */
+    class Status implements JobListener {
+
+        @Override
+        public void queued(Blob blob, int position) {
+            IJ.showStatus("Wid-U: " + position + " jobs ahead in the server queue");
+        }
+
+        @Override
+        public void progress(Blob blob, int done, int total) {
+            IJ.showStatus("Wid-U: segmented " + done + "/" + total + " tiles");
+            IJ.showProgress(done, total);
+        }
+
+        @Override
+        public void done(Blob blob) {
+            IJ.showStatus("Wid-U: segmentation done");
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local record of a job on the server, so that a job interrupted by a dropped connection or a Fiji restart
+ * is resumed instead of started again.
+ * 
+ * Manifests are kept in a folder of the local cache folder, named after the SHA-256 of the raw tiles, 
+ * the model and the tile parameters. When the same tiles are segmented again with the same model, the blob
+ * takes the ID of the previous job, so that its folder on the server is reused: tiles already uploaded are not sent again, 
+ * a job already submitted is not submitted again, and results already produced are just downloaded.
+ * Results are downloaded again after a restart: only the results received in the same run are kept.
+ * <p>
+ * The manifest is a text file with the job ID, the tile names, and one line for each tile uploaded 
+ * ("U name") and for the submission ("S"), appended as they happen.
+ * It is deleted when the job is done or failed on the server.
+ * 
+ * @author Diego Morone
+ */
+public class JobManifest {
+
+    private static final String FOLDER = "widu-jobs";
+    private static final long MAXAGE = 7L * 24 * 3600 * 1000; // manifests of jobs never resumed are deleted after a week
+
+    // Keys of the jobs open in this Fiji, so that two identical blobs are not resumed as the same job
+    private static final Set<String> active = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final File file;
+    private final String key;
+    private final Set<String> uploaded = new HashSet<String>();
+    private boolean submitted = false;
+    private FileOutputStream out = null;
+    private Writer writer = null;
+
+    private JobManifest(File file, String key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * Open the manifest of the job of a blob. If a manifest of the same tiles and model exists, the blob takes
+     * the ID of that job. Otherwise a new manifest is created
+     * 
+     * @param blob  blob with raw tiles
+     * @param model identity of the model, e.g. server and command
+     * @return manifest of the job. Not saved if the local cache folder is not writable
+     */
+    public static JobManifest open(Blob blob, String model) {
+        File folder = new File(Prefs.get("ch.irb.widu.localcache", System.getProperty("java.io.tmpdir")), FOLDER);
+        String key = key(blob, model);
+        File file = new File(folder, key + ".txt");
+
+        if (!active.add(key)) return new JobManifest(null, null);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            active.remove(key);
+            return new JobManifest(null, null);
+        }
+        cleanup(folder);
+
+        JobManifest manifest = new JobManifest(file, key);
+        if (file.isFile() && manifest.load(blob)) {
+            IJ.log("Resuming job " + blob.getID() + ": " + manifest.uploaded.size() + "/" + blob.getRawTiles().size() 
+                + " tiles uploaded" + (manifest.submitted ? ", submitted" : ""));
+        } else {
+            manifest.create(blob, model);
+        }
+        return manifest;
+    }
+
+    /**
+     * @param name  name of a tile
+     * @return true if the tile was uploaded to the server
+     */
+    public synchronized boolean isUploaded(String name) {
+        return uploaded.contains(name);
+    }
+
+    /**
+     * @return true if the job was submitted to the server
+     */
+    public synchronized boolean isSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Record that a tile was uploaded
+     * 
+     * @param name  name of the tile
+     */
+    public synchronized void uploaded(String name) {
+        if (uploaded.add(name)) append("U " + name, false);
+    }
+
+    /**
+     * Record that the job was submitted. Written to disk before returning
+     */
+    public synchronized void submitted() {
+        submitted = true;
+        append("S", true);
+    }
+
+    /**
+     * Keep the manifest to resume the job later, e.g. after the connection dropped
+     */
+    public synchronized void close() {
+        closeWriter();
+        if (key != null) active.remove(key);
+    }
+
+    /**
+     * Delete the manifest, when the job is done or failed on the server
+     */
+    public synchronized void delete() {
+        close();
+        if (file != null) file.delete();
+    }
+
+    /*
+     * Read a manifest and give its job ID to the blob
+     * 
+     * @return false if the manifest is not valid for the blob
+     */
+    private boolean load(Blob blob) {
+        String id = null;
+        int tiles = -1;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("id ")) id = line.substring(3);
+                else if (line.startsWith("tiles ")) tiles = Integer.parseInt(line.substring(6));
+                else if (line.startsWith("U ")) uploaded.add(line.substring(2));
+                else if (line.equals("S")) submitted = true;
+            }
+        } catch (IOException | NumberFormatException e) {
+            IJ.log("Cannot read job manifest " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+
+        if (id == null || tiles != blob.getRawTiles().size()) {
+            uploaded.clear();
+            submitted = false;
+            return false;
+        }
+        blob.setID(id);
+        return true;
+    }
+
+    /*
+     * Write the header of a new manifest
+     */
+    private void create(Blob blob, String model) {
+        StringBuilder header = new StringBuilder();
+        header.append("# Wid-U job manifest\n");
+        header.append("id ").append(blob.getID()).append('\n');
+        header.append("model ").append(model).append('\n');
+        header.append("image ").append(blob.getTitle()).append('\n');
+        int[] indices = blob.getRawTiles().indices();
+        header.append("tiles ").append(indices.length).append('\n');
+        for (int index : indices) {
+            header.append("tile ").append(blob.getTileName(index)).append('\n');
+        }
+
+        try {
+            Files.write(file.toPath(), header.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            IJ.log("Cannot write job manifest " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * Append a line to the manifest. Lost lines only mean that tiles are sent again
+     */
+    private void append(String line, boolean sync) {
+        if (file == null) return;
+        try {
+            if (writer == null) {
+                out = new FileOutputStream(file, true);
+                writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            }
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            if (sync) out.getFD().sync();
+        } catch (IOException e) {
+            IJ.log("Cannot write job manifest " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // nothing to keep
+        }
+        writer = null;
+        out = null;
+    }
+
+    /*
+     * Delete manifests of jobs not resumed for a long time
+     */
+    private static void cleanup(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (now - f.lastModified() > MAXAGE) f.delete();
+        }
+    }
+
+    /*
+     * SHA-256 of model, tile parameters and raw tiles with their names
+     */
+    private static String key(Blob blob, String model) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(blob.getTileParameters().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            TileStore tiles = blob.getRawTiles();
+            for (int index : tiles.indices()) {
+                digest.update(blob.getTileName(index).getBytes(StandardCharsets.UTF_8));
+                digest.update(tiles.get(index));
+            }
+
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Segmentation inside ImageJ, on the CPU, without any server.
+ * 
+ * Raw tiles are decoded in parallel and segmented in batches by a TileModel. Outputs are scaled
+ * like the server does (Keras array_to_img: each tile from its minimum to its maximum, to 0-255), 
+ * and added to the blob as segmented tiles.
+ * 
+ * @author Diego Morone
+ */
+public class LocalBackend implements Backend {
+
+    private final String modelpath;
+    private final int threads;
+    private final int batchsize;
+
+    private TileModel model = null;
+
+    /**
+     * Initialize a new backend with an ONNX model. The model is loaded at the first blob submitted
+     * 
+     * @param modelpath path of the ONNX model file
+     */
+    public LocalBackend(String modelpath) {
+        this.modelpath = modelpath;
+        this.threads = Parallel.getThreads();
+        this.batchsize = getBatchSize();
+    }
+
+    /**
+     * Initialize a new backend with a loaded model
+     * 
+     * @param model     model segmenting the tiles
+     * @param batchsize tiles per inference
+     */
+    public LocalBackend(TileModel model, int batchsize) {
+        this.modelpath = null;
+        this.model = model;
+        this.threads = Parallel.getThreads();
+        this.batchsize = Math.max(1, batchsize);
+    }
+
+    /**
+     * Batch size from the Wid-U settings. Defaults to 8
+     * 
+     * @return tiles per inference, at least 1
+     */
+    public static int getBatchSize() {
+        int batch = 8;
+        try {
+            batch = Integer.parseInt(Prefs.get("ch.irb.widu.batch", "8"));
+        } catch (NumberFormatException e) {
+            // keep default
+        }
+        return Math.max(1, batch);
+    }
+
+    /*
+     * Load the model, or return the model loaded before
+     */
+    private synchronized TileModel getTileModel() throws Exception {
+        if (model == null) {
+            File file = new File(modelpath);
+            if (!file.isFile()) throw new IOException("ONNX model not found: " + modelpath);
+            try {
+                model = new OnnxTileModel(file, threads);
+            } catch (NoClassDefFoundError e) {
+                throw new IOException("ONNX Runtime not found. Please copy the onnxruntime jar to the jars folder of Fiji");
+            }
+            IJ.log("Loaded model " + file.getName());
+        }
+        return model;
+    }
+
+    /**
+     * Segmentation runs in the calling thread and is done when this method returns
+     */
+    @Override
+    public void submit(Blob blob) {
+        // nothing to queue, see collect
+    }
+
+    @Override
+    public boolean collect(Blob blob) {
+        int[] indices = blob.getRawTiles().indices();
+        int tilesize = blob.getTileSize();
+        long start = System.nanoTime();
+
+        try {
+            TileModel model = getTileModel();
+            AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+            for (int first = 0; first < indices.length && error.get() == null; first += batchsize) {
+                int n = Math.min(batchsize, indices.length - first);
+                int offset = first;
+                RunReport.Span span = RunReport.begin(RunReport.Phase.INFERENCE);
+
+                // Decode tiles in parallel, then run the batch with the threads of the model
+                float[][] batch = new float[n][];
+                Parallel.forEach(threads, n, i -> {
+                    try {
+                        batch[i] = toInput(blob.getRawTiles().get(indices[offset + i]), tilesize);
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                });
+                if (error.get() != null) break;
+
+                float[][] output = model.predict(batch);
+
+                Parallel.forEach(threads, n, i -> {
+                    blob.addSegmentedTile(toPNG(output[i], tilesize), indices[offset + i]);
+                });
+                span.end(n, 0);
+
+                IJ.showProgress(first + n, indices.length);
+            }
+            if (error.get() != null) throw error.get();
+
+        } catch (Exception e) {
+            IJ.error("Wid-U", "Local segmentation failed. Error: " + e.getMessage());
+            return false;
+        }
+
+        IJ.log(String.format("Segmented %d tiles in %.1f s", indices.length, (System.nanoTime() - start) / 1e9));
+        return true;
+    }
+
+    /*
+     * Decode a raw tile to values from 0 to 1, as grayscale images loaded by Keras and divided by 255
+     */
+    public static float[] toInput(byte[] png, int tilesize) throws IOException {
+        // In-memory input stream, closed by ImageIO.read
+        BufferedImage tile = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(png)));
+        if (tile == null) throw new IOException("cannot decode tile");
+
+        ByteProcessor bp = new ByteProcessor(tile);
+        if (bp.getWidth() != tilesize || bp.getHeight() != tilesize) {
+            bp = (ByteProcessor) bp.resize(tilesize, tilesize);
+        }
+        byte[] pixels = (byte[]) bp.getPixels();
+
+        float[] values = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            values[i] = (pixels[i] & 0xff) / 255f;
+        }
+        return values;
+    }
+
+    /*
+     * Encode a model output as the server does: values scaled from their minimum to their maximum, 
+     * truncated to 8-bit, as PNG
+     */
+    public static byte[] toPNG(float[] output, int tilesize) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : output) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        float range = max - min;
+
+        byte[] pixels = new byte[tilesize * tilesize];
+        for (int i = 0; i < pixels.length; i++) {
+            float v = output[i] - min;
+            if (range != 0) v = v / range;
+            pixels[i] = (byte) (int) (v * 255);
+        }
+
+        return Blob.saveAsPNG(new ByteProcessor(tilesize, tilesize, pixels).getBufferedImage());
+    }
+
+    @Override
+    public String getModel() {
+        if (model != null) return model.getID();
+        return getModelID(new File(modelpath));
+    }
+
+    /**
+     * Identity of an ONNX model file, from its name, size and date. 
+     * Kept here so that it does not need ONNX Runtime on the classpath
+     * 
+     * @param file  ONNX model file
+     * @return model identity
+     */
+    public static String getModelID(File file) {
+        return "onnx:" + file.getName() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (model != null) model.close();
+        model = null;
+    }
+}
@@ -0,0 +1,259 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tile store keeping tiles outside of the Java heap, in memory-mapped files of a local folder.
+ * 
+ * Tiles are appended to segment files of fixed size, and only their position is kept on the heap,
+ * in flat arrays indexed by tile index. The operating system pages segments in and out as needed, 
+ * so that heap usage does not depend on the size of the dataset. Files are unmapped and deleted when the store is closed.
+ * 
+ * @author Diego Morone
+ */
+public class MappedTileStore implements TileStore {
+
+    private static final int SEGMENTSIZE = 64 << 20; // 64MB
+
+    private final File folder;
+    private final String prefix;
+    private final ArrayList<File> files = new ArrayList<File>();
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    // Segment (high 32 bits) and offset (low 32 bits) of each tile
+    private final AtomicLongArray positions;
+    // Length of each tile, -1 if missing
+    private final AtomicIntegerArray lengths;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Next free byte in the last segment
+    private int position = 0;
+
+    // Reads and writes hold the read lock, so that segments are never unmapped while in use
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    /**
+     * Initialize a new empty store. Segment files are created on demand
+     * 
+     * @param folder    local folder for the segment files
+     * @param capacity  number of tiles that can be stored
+     */
+    public MappedTileStore(File folder, int capacity) {
+        this.folder = folder;
+        this.prefix = "widu-tiles-" + UUID.randomUUID().toString();
+        this.positions = new AtomicLongArray(capacity);
+        this.lengths = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            lengths.set(i, -1);
+        }
+    }
+
+    @Override
+    public void put(int index, byte[] data) {
+        lock.readLock().lock();
+        try {
+            if (closed) return;
+
+            long pos;
+            ByteBuffer view;
+            synchronized (this) {
+                pos = allocate(data.length);
+                view = segments.get((int)(pos >>> 32)).duplicate();
+            }
+
+            // Each writer copies to its own region, through its own view of the segment
+            view.position((int)pos);
+            view.put(data);
+
+            // Length is set last, so that readers never see a partially written tile
+            positions.set(index, pos);
+            if (lengths.getAndSet(index, data.length) < 0) size.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(int index) {
+        lock.readLock().lock();
+        try {
+            int length = lengths.get(index);
+            if (closed || length < 0) return null;
+
+            long pos = positions.get(index);
+            ByteBuffer view;
+            synchronized (this) {
+                view = segments.get((int)(pos >>> 32)).duplicate();
+            }
+            byte[] data = new byte[length];
+            view.position((int)pos);
+            view.get(data);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(int index) {
+        // Space in the segment is not reused, it is released when the store is closed
+        if (lengths.getAndSet(index, -1) >= 0) size.decrementAndGet();
+    }
+
+    @Override
+    public boolean contains(int index) {
+        return lengths.get(index) >= 0;
+    }
+
+    @Override
+    public int[] indices() {
+        int[] out = new int[size.get()];
+        int n = 0;
+        for (int i = 0; i < lengths.length() && n < out.length; i++) {
+            if (lengths.get(i) >= 0) out[n++] = i;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            for (int i = 0; i < lengths.length(); i++) {
+                lengths.set(i, -1);
+            }
+            size.set(0);
+
+            // Mapped files cannot be deleted on Windows until they are unmapped
+            for (MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+            segments.clear();
+            for (File f : files) {
+                if (!f.delete()) f.deleteOnExit();
+            }
+            files.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Release a mapping now instead of when the garbage collector finds the buffer: with Unsafe.invokeCleaner 
+     * on Java 9 and later, with the cleaner of the buffer on Java 8. The buffer must not be used afterwards
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeclass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokecleaner = unsafeclass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theunsafe = unsafeclass.getDeclaredField("theUnsafe");
+                theunsafe.setAccessible(true);
+                invokecleaner.invoke(theunsafe.get(null), buffer);
+                return;
+            } catch (NoSuchMethodException e) {
+                // Java 8
+            }
+            Method getcleaner = buffer.getClass().getMethod("cleaner");
+            getcleaner.setAccessible(true);
+            Object cleaner = getcleaner.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    /*
+     * Reserve space for a tile, adding a new segment if the last one is full
+     * 
+     * @return segment (high 32 bits) and offset (low 32 bits) of the reserved space
+     */
+    private long allocate(int length) {
+        if (segments.isEmpty() || position + length > segments.get(segments.size() - 1).capacity()) {
+            addSegment(Math.max(SEGMENTSIZE, length));
+        }
+        long pos = ((long)(segments.size() - 1) << 32) | position;
+        position = position + length;
+        return pos;
+    }
+
+    /*
+     * Create and map a new segment file
+     */
+    private void addSegment(int size) {
+        File f = new File(folder, prefix + "-" + segments.size() + ".tiles");
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            FileChannel channel = raf.getChannel();
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, size)); // mapping stays valid after closing the file
+            files.add(f);
+            position = 0;
+        } catch (IOException e) {
+            IJ.log("Cannot create tile file " + f.getPath() + ": " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+}
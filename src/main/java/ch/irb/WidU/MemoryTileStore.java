@@ -0,0 +1,109 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tile store keeping all tiles on the Java heap, in a flat array indexed by tile index
+ * 
+ * @author Diego Morone
+ */
+public class MemoryTileStore implements TileStore {
+
+    private final AtomicReferenceArray<byte[]> tiles;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Initialize a new empty store
+     * 
+     * @param capacity  number of tiles that can be stored
+     */
+    public MemoryTileStore(int capacity) {
+        this.tiles = new AtomicReferenceArray<byte[]>(capacity);
+    }
+
+    @Override
+    public void put(int index, byte[] data) {
+        if (tiles.getAndSet(index, data) == null) size.incrementAndGet();
+    }
+
+    @Override
+    public byte[] get(int index) {
+        return tiles.get(index);
+    }
+
+    @Override
+    public void remove(int index) {
+        if (tiles.getAndSet(index, null) != null) size.decrementAndGet();
+    }
+
+    @Override
+    public boolean contains(int index) {
+        return tiles.get(index) != null;
+    }
+
+    @Override
+    public int[] indices() {
+        int[] out = new int[size.get()];
+        int n = 0;
+        for (int i = 0; i < tiles.length() && n < out.length; i++) {
+            if (tiles.get(i) != null) out[n++] = i;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < tiles.length(); i++) {
+            tiles.set(i, null);
+        }
+        size.set(0);
+    }
+}
@@ -0,0 +1,260 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several blobs segmented as a single job, e.g. the fields of a plate, so that the server loads
+ * the model and runs a job once for all of them.
+ * 
+ * A multi-blob does not hold tiles of its own: its tile stores are views of the tile stores of its parts,
+ * one after the other. Tiles are named after the part and the tile name in the part, e.g. 0003_0001-0224-0000.png
+ * for a tile of the fourth image. Results collected by the backend go straight to the segmented tiles of the parts, 
+ * so that each part is reassembled on its own afterwards, as if it had been segmented alone.
+ * <p>
+ * The manifest, sent along with the tiles as manifest.txt, lists the images of the job and their tiles.
+ * 
+ * @author Diego Morone
+ */
+public class MultiBlob extends Blob {
+
+    /** Name of the manifest in the blob folder */
+    public static final String MANIFEST = "manifest.txt";
+
+    private final List<Blob> parts;
+    private final int[] offsets; // first index of each part, plus the total number of tiles
+    private final TileStore rawtiles;
+    private final TileStore segmentedtiles;
+
+    /**
+     * Initialize a new multi-blob. Parts are already populated, and may have tiles from the result cache
+     * 
+     * @param parts blobs to segment together
+     */
+    public MultiBlob(List<Blob> parts) {
+        super();
+        this.parts = Collections.unmodifiableList(new ArrayList<Blob>(parts));
+        this.offsets = new int[parts.size() + 1];
+        for (int p = 0; p < parts.size(); p++) {
+            offsets[p + 1] = offsets[p] + parts.get(p).getTileCount();
+        }
+        this.rawtiles = new PartStore(true);
+        this.segmentedtiles = new PartStore(false);
+    }
+
+    /**
+     * @return blobs segmented together, in the order they were added
+     */
+    public List<Blob> getParts() {
+        return parts;
+    }
+
+    @Override
+    public TileStore getRawTiles() {
+        return rawtiles;
+    }
+
+    @Override
+    public TileStore getSegmentedTiles() {
+        return segmentedtiles;
+    }
+
+    @Override
+    public int getTileCount() {
+        return offsets[parts.size()];
+    }
+
+    @Override
+    public String getTitle() {
+        return parts.size() + " images";
+    }
+
+    @Override
+    public String getTileName(int index) {
+        int p = part(index);
+        StringBuilder name = new StringBuilder(23);
+        String number = Integer.toString(p + 1);
+        for (int d = number.length(); d < 4; d++) name.append('0');
+        return name.append(number).append('_').append(parts.get(p).getTileName(index - offsets[p])).toString();
+    }
+
+    @Override
+    public int getTileIndex(String name) {
+        int separator = name.indexOf('_');
+        if (separator < 0) return -1;
+        try {
+            int p = Integer.parseInt(name.substring(0, separator)) - 1;
+            if (p < 0 || p >= parts.size()) return -1;
+            int index = parts.get(p).getTileIndex(name.substring(separator + 1));
+            return index < 0 ? -1 : offsets[p] + index;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void addRawTile(byte[] f, String name) {
+        int index = getTileIndex(name);
+        if (index >= 0) rawtiles.put(index, f);
+    }
+
+    @Override
+    public void addSegmentedTile(byte[] f, String name) {
+        int index = getTileIndex(name);
+        if (index >= 0) segmentedtiles.put(index, f);
+    }
+
+    @Override
+    public void addSegmentedTile(byte[] f, int index) {
+        segmentedtiles.put(index, f);
+    }
+
+    /**
+     * One line per image: number, title, tiles to segment and first tile index. For example:
+     * <pre>
+     * 0001	field01.tif	42	0
+     * </pre>
+     */
+    @Override
+    public String getManifest() {
+        StringBuilder manifest = new StringBuilder("# image\ttitle\ttiles\tfirst index\n");
+        for (int p = 0; p < parts.size(); p++) {
+            String number = Integer.toString(p + 1);
+            for (int d = number.length(); d < 4; d++) manifest.append('0');
+            manifest.append(number).append('\t')
+                .append(parts.get(p).getTitle()).append('\t')
+                .append(parts.get(p).getRawTiles().size()).append('\t')
+                .append(offsets[p]).append('\n');
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * Tiles belong to the parts, which are closed on their own after reassembly
+     */
+    @Override
+    public void close() {
+    }
+
+    /*
+     * Part of a tile index
+     */
+    private int part(int index) {
+        int p = Arrays.binarySearch(offsets, index);
+        // Parts without tiles share their offset with the next one
+        if (p >= 0) {
+            while (p < parts.size() - 1 && offsets[p + 1] == index) p++;
+            return p;
+        }
+        return -p - 2;
+    }
+
+    /*
+     * Raw or segmented tiles of all parts, addressed by offset index
+     */
+    private class PartStore implements TileStore {
+
+        private final boolean raw;
+
+        PartStore(boolean raw) {
+            this.raw = raw;
+        }
+
+        private TileStore store(int p) {
+            return raw ? parts.get(p).getRawTiles() : parts.get(p).getSegmentedTiles();
+        }
+
+        @Override
+        public void put(int index, byte[] data) {
+            int p = part(index);
+            store(p).put(index - offsets[p], data);
+        }
+
+        @Override
+        public byte[] get(int index) {
+            int p = part(index);
+            return store(p).get(index - offsets[p]);
+        }
+
+        @Override
+        public void remove(int index) {
+            int p = part(index);
+            store(p).remove(index - offsets[p]);
+        }
+
+        @Override
+        public boolean contains(int index) {
+            if (index < 0 || index >= getTileCount()) return false;
+            int p = part(index);
+            return store(p).contains(index - offsets[p]);
+        }
+
+        @Override
+        public int[] indices() {
+            int[] indices = new int[size()];
+            int i = 0;
+            for (int p = 0; p < parts.size(); p++) {
+                for (int index : store(p).indices()) {
+                    indices[i++] = offsets[p] + index;
+                }
+            }
+            return i == indices.length ? indices : Arrays.copyOf(indices, i);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (int p = 0; p < parts.size(); p++) {
+                size += store(p).size();
+            }
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
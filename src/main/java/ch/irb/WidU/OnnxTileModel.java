@@ -0,0 +1,141 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+/**
+ * The Wid-U U-Net exported to ONNX (e.g. with tf2onnx from the Keras model of the server), 
+ * run on the CPU with ONNX Runtime.
+ * 
+ * Inputs can be channels last (N x 224 x 224 x 1, as exported from Keras) or channels first (N x 1 x 224 x 224).
+ * When the height and width of the input are dynamic, the size of the tiles is taken from the tiles themselves.
+ * 
+ * @author Diego Morone
+ */
+public class OnnxTileModel implements TileModel {
+
+    private final File file;
+    private final OrtEnvironment env;
+    private final OrtSession session;
+    private final String input;
+    private final boolean channelsfirst;
+    private final int tilesize; // 0 when dynamic
+
+    /**
+     * Load a model
+     * 
+     * @param file      ONNX model file
+     * @param threads   threads used by each inference
+     * @throws OrtException if the model cannot be loaded
+     */
+    public OnnxTileModel(File file, int threads) throws OrtException {
+        this.file = file;
+        this.env = OrtEnvironment.getEnvironment();
+
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        options.setIntraOpNumThreads(threads);
+        options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+        this.session = env.createSession(file.getPath(), options);
+
+        Map.Entry<String, NodeInfo> in = session.getInputInfo().entrySet().iterator().next();
+        this.input = in.getKey();
+        long[] shape = ((TensorInfo) in.getValue().getInfo()).getShape();
+        if (shape.length != 4) throw new IllegalArgumentException("Model input must have 4 dimensions, found " + shape.length);
+
+        this.channelsfirst = shape[1] == 1 && shape[3] != 1;
+        long size = channelsfirst ? shape[3] : shape[2];
+        this.tilesize = size > 0 ? (int) size : 0;
+    }
+
+    @Override
+    public float[][] predict(float[][] tiles) throws OrtException {
+        int n = tiles.length;
+        int tilesize = this.tilesize > 0 ? this.tilesize : (int) Math.round(Math.sqrt(tiles[0].length));
+        int pixels = tilesize * tilesize;
+
+        FloatBuffer buffer = FloatBuffer.allocate(n * pixels);
+        for (float[] tile : tiles) {
+            buffer.put(tile, 0, pixels);
+        }
+        buffer.rewind();
+
+        // One channel, so both layouts have the same pixel order
+        long[] shape = channelsfirst ? new long[]{n, 1, tilesize, tilesize} : new long[]{n, tilesize, tilesize, 1};
+
+        try (OnnxTensor tensor = OnnxTensor.createTensor(env, buffer, shape);
+             OrtSession.Result result = session.run(Collections.singletonMap(input, tensor))) {
+
+            FloatBuffer output = ((OnnxTensor) result.get(0)).getFloatBuffer();
+            float[][] out = new float[n][pixels];
+            for (int i = 0; i < n; i++) {
+                output.get(out[i]);
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public String getID() {
+        return LocalBackend.getModelID(file);
+    }
+
+    @Override
+    public void close() {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            // nothing to release anymore
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Helper for running independent tasks on a bounded number of threads.
+ * 
+ * Tasks run in a dedicated fork-join pool, so that nested parallel loops (e.g. slices, then tiles of each slice)
+ * share the same threads and never exceed the requested number of threads. Loops called from other pools, 
+ * e.g. from a parallel stream of the common pool, get a dedicated pool of their own.
+ * 
+ * @author Diego Morone
+ */
+public class Parallel {
+
+    /*
+     * Worker of a pool created by forEach, to tell nested loops from loops called from other pools
+     */
+    private static class Worker extends ForkJoinWorkerThread {
+        Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+    }
+
+    /**
+     * Number of threads from the Wid-U settings. Defaults to the number of available processors.
+     * 
+     * @return number of threads, at least 1
+     */
+    public static int getThreads() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            threads = Integer.parseInt(ij.Prefs.get("ch.irb.widu.threads", Integer.toString(threads)));
+        } catch (NumberFormatException e) {
+            // keep default
+        }
+        return Math.max(1, threads);
+    }
+
+    /**
+     * Runs task for all indices from 0 (included) to n (excluded), and waits for all of them to complete.
+     * If called from a task of another forEach, indices are split among the threads of the outer loop.
+     * 
+     * @param threads   maximum number of threads
+     * @param n         number of tasks
+     * @param task      task to run for each index
+     */
+    public static void forEach(int threads, int n, IntConsumer task) {
+
+        // Nested loop: use the pool of the outer loop
+        if (Thread.currentThread() instanceof Worker || threads <= 1 || n <= 1) {
+            IntStream range = IntStream.range(0, n);
+            if (threads > 1) range = range.parallel();
+            range.forEach(task);
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads, Worker::new, null, false);
+        try {
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages shared by StreamingPipeline.java and WidUBatch.java.
+ * 
+ * Tiling, upload and download run in separate threads, and reassembly in the calling thread. The stages are
+ * connected by bounded queues, so that while a blob is being segmented the next one is already tiled and uploaded,
+ * and at most queuesize blobs wait between two stages. Upload and download are the same for all workflows:
+ * subclasses create the blobs, decide what to do with the collected tiles and reassemble the results.
+ * <p>
+ * When a stage fails, all stages stop and the blobs left in the queues are closed.
+ * 
+ * @author Diego Morone
+ */
+abstract class PipelineStages {
+
+    // Marks the end of the stream in the queues
+    private static final Blob END = new Blob();
+
+    private final String title;
+    private final Backend backend;
+    private final BlockingQueue<Blob> tiled;
+    private final BlockingQueue<Blob> submitted;
+    private final BlockingQueue<Blob> segmented;
+    private volatile boolean failed = false;
+
+    /**
+     * @param title     name of the workflow in errors and thread names, e.g. "Streaming"
+     * @param backend   where tiles are segmented, e.g. a server
+     * @param queuesize maximum number of blobs waiting between two stages
+     */
+    PipelineStages(String title, Backend backend, int queuesize) {
+        this.title = title;
+        this.backend = backend;
+        this.tiled = new ArrayBlockingQueue<Blob>(Math.max(1, queuesize));
+        this.submitted = new ArrayBlockingQueue<Blob>(Math.max(1, queuesize));
+        this.segmented = new ArrayBlockingQueue<Blob>(Math.max(1, queuesize));
+    }
+
+    /**
+     * Tiling stage: creates the blobs and hands them to the upload with tiled(blob).
+     * Runs in its own thread, and should stop when failed() is true
+     */
+    protected abstract void tile() throws Exception;
+
+    /**
+     * Download stage: called with each blob once the backend returned its segmented tiles, or failed to.
+     * Hands the blobs to reassemble with segmented(blob). Blobs with all tiles from the result cache are not sent,
+     * and come here as collected. If it throws, all stages stop and the blob is closed
+     * 
+     * @param blob  blob sent to the backend
+     * @param ok    true if all segmented tiles were received
+     */
+    protected abstract void collected(Blob blob, boolean ok) throws Exception;
+
+    /**
+     * Reassembly stage, in the calling thread. The blob is closed afterwards
+     * 
+     * @param blob  blob with all segmented tiles
+     */
+    protected abstract void reassemble(Blob blob) throws Exception;
+
+    /**
+     * Queues a blob for upload. Closes the blob if another stage failed
+     * 
+     * @return true if the blob was queued
+     */
+    protected final boolean tiled(Blob blob) throws InterruptedException {
+        return handover(tiled, blob);
+    }
+
+    /**
+     * Queues a blob for reassembly. Closes the blob if another stage failed
+     * 
+     * @return true if the blob was queued
+     */
+    protected final boolean segmented(Blob blob) throws InterruptedException {
+        return handover(segmented, blob);
+    }
+
+    /**
+     * @return true if a stage failed, and all stages are stopping
+     */
+    protected final boolean failed() {
+        return failed;
+    }
+
+    /**
+     * Runs all stages and waits for the last blob to be reassembled
+     * 
+     * @return true if no stage failed
+     */
+    final boolean run() {
+        String prefix = "Wid-U "+ title.toLowerCase() +" ";
+
+        Thread tiler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tile();
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    end(tiled);
+                }
+            }
+        }, prefix +"tiling");
+
+        Thread uploader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Blob blob = null;
+                try {
+                    while ((blob = tiled.take()) != END && !failed) {
+                        if (blob.getRawTiles().size() > 0) backend.submit(blob);
+                        if (!put(submitted, blob)) break;
+                        blob = null;
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    discard(blob);
+                    end(submitted);
+                }
+            }
+        }, prefix +"upload");
+
+        Thread downloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Blob blob = null;
+                try {
+                    while ((blob = submitted.take()) != END && !failed) {
+                        boolean ok = blob.getRawTiles().size() == 0 || backend.collect(blob);
+                        collected(blob, ok);
+                        blob = null;
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    discard(blob);
+                    end(segmented);
+                }
+            }
+        }, prefix +"download");
+
+        tiler.start();
+        uploader.start();
+        downloader.start();
+
+        Blob blob = null;
+        try {
+            while ((blob = segmented.take()) != END && !failed) {
+                try {
+                    reassemble(blob);
+                } finally {
+                    discard(blob);
+                    blob = null;
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            discard(blob);
+        }
+
+        try {
+            tiler.join();
+            uploader.join();
+            downloader.join();
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+
+        // Blobs left behind by a failed stage
+        drain(tiled);
+        drain(submitted);
+        drain(segmented);
+
+        return !failed;
+    }
+
+    /*
+     * Stops all stages and shows the error
+     */
+    private void fail(Exception e) {
+        if (!failed) {
+            failed = true;
+            IJ.error("Wid-U", title +" failed. Error: "+ e.getMessage());
+        }
+    }
+
+    /*
+     * Puts a blob of a subclass in a queue, or closes it if it will not reach the next stage
+     */
+    private boolean handover(BlockingQueue<Blob> queue, Blob blob) throws InterruptedException {
+        if (!failed && put(queue, blob)) return true;
+        discard(blob);
+        return false;
+    }
+
+    /*
+     * Waits for space in the queue and puts the blob in it. Gives up if another stage failed,
+     * since nobody will consume the queue anymore.
+     * 
+     * @return true if the blob was queued
+     */
+    private boolean put(BlockingQueue<Blob> queue, Blob blob) throws InterruptedException {
+        while (!queue.offer(blob, 100, TimeUnit.MILLISECONDS)) {
+            if (failed) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Releases the tiles of a blob, or of all parts of a multi-blob, that will not reach the next stage
+     */
+    private static void discard(Blob blob) {
+        if (blob == null || blob == END) return;
+        if (blob instanceof MultiBlob) {
+            for (Blob part : ((MultiBlob) blob).getParts()) part.close();
+        } else {
+            blob.close();
+        }
+    }
+
+    /*
+     * Releases all blobs left in a queue
+     */
+    private static void drain(BlockingQueue<Blob> queue) {
+        Blob blob;
+        while ((blob = queue.poll()) != null) discard(blob);
+    }
+
+    /*
+     * Puts the end marker in a queue, so that the next stage can terminate
+     */
+    private void end(BlockingQueue<Blob> queue) {
+        try {
+            put(queue, END);
+        } catch (InterruptedException e) {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a step over many tiles, e.g. an upload. 
+ * 
+ * Instead of a log line per tile, which slows down transfers of small tiles, progress is shown in the ImageJ
+ * status bar at most every 250 ms, and written to the log at most every 5 s. Safe to call from several threads.
+ * 
+ * @author Diego Morone
+ */
+public class Progress {
+
+    private static final long STATUS_INTERVAL = 250_000_000L;
+    private static final long LOG_INTERVAL = 5_000_000_000L;
+
+    private final String verb;
+    private final int total;
+    private final long start = System.nanoTime();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nextstatus = new AtomicLong(start + STATUS_INTERVAL);
+    private final AtomicLong nextlog = new AtomicLong(start + LOG_INTERVAL);
+
+    /**
+     * @param verb  what is done to the tiles, e.g. "Sent"
+     * @param total number of tiles
+     */
+    public Progress(String verb, int total) {
+        this.verb = verb;
+        this.total = total;
+    }
+
+    /**
+     * One more tile done
+     * 
+     * @param size  bytes of the tile
+     */
+    public void step(long size) {
+        int n = done.incrementAndGet();
+        long b = bytes.addAndGet(size);
+        long now = System.nanoTime();
+
+        long status = nextstatus.get();
+        if (now >= status && nextstatus.compareAndSet(status, now + STATUS_INTERVAL)) {
+            IJ.showStatus("Wid-U: " + message(n, b, now));
+            IJ.showProgress(n, total);
+        }
+        long log = nextlog.get();
+        if (now >= log && nextlog.compareAndSet(log, now + LOG_INTERVAL)) {
+            IJ.log(message(n, b, now));
+        }
+    }
+
+    private String message(int n, long b, long now) {
+        double seconds = (now - start) / 1e9;
+        return String.format("%s %d/%d tiles, %.1f MB/s", verb, n, total, seconds > 0 ? b / 1e6 / seconds : 0);
+    }
+}
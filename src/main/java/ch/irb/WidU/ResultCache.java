@@ -0,0 +1,299 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local cache of segmented tiles, in a folder of the local cache folder.
+ * 
+ * Results are addressed by the SHA-256 of the raw tile together with the model and the tile parameters,
+ * so that tiles already segmented, in the same or in another image, are not sent to the server again.
+ * The cache size is bounded in the Wid-U settings; least recently used results are deleted first.
+ * The model is identified by the server and command, so the cache must be cleared if the model on the server changes.
+ * For this reason the cache is disabled unless a size is set in the Wid-U settings.
+ * 
+ * @author Diego Morone
+ */
+public class ResultCache {
+
+    private static final String FOLDER = "widu-results";
+    private static final Map<String, Index> indexes = new HashMap<String, Index>();
+
+    private final File folder;
+    private final long maxsize;
+    private final String model;
+    private final Index index;
+
+    /*
+     * Size of each cached result by key, least recently used first. Shared by all models of a folder
+     */
+    private static class Index {
+        final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        long total = 0;
+    }
+
+    private ResultCache(File folder, long maxsize, String model, Index index) {
+        this.folder = folder;
+        this.maxsize = maxsize;
+        this.model = model;
+        this.index = index;
+    }
+
+    /**
+     * Open the cache of the Wid-U settings for a model
+     * 
+     * @param model identity of the model, e.g. server and command
+     * @return cache, or null if disabled in the settings
+     */
+    public static ResultCache open(String model) {
+        long maxsize = getMaxSize();
+        if (maxsize <= 0) return null;
+
+        File folder = getFolder();
+        synchronized (indexes) {
+            Index index = indexes.get(folder.getPath());
+            if (index == null) {
+                if (!folder.isDirectory() && !folder.mkdirs()) {
+                    IJ.log("Cannot create result cache folder " + folder.getPath());
+                    return null;
+                }
+                index = new Index();
+                indexes.put(folder.getPath(), index);
+                new ResultCache(folder, maxsize, model, index).scan();
+            }
+            return new ResultCache(folder, maxsize, model, index);
+        }
+    }
+
+    /**
+     * Delete all cached results of the Wid-U settings folder. Caches already open on this folder 
+     * share its index, and are emptied as well
+     */
+    public static void clear() {
+        File folder = getFolder();
+        synchronized (indexes) {
+            Index index = indexes.get(folder.getPath());
+            if (index != null) {
+                synchronized (index) {
+                    index.entries.clear();
+                    index.total = 0;
+                }
+            }
+            File[] files = folder.listFiles();
+            if (files == null) return;
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        IJ.log("Result cache cleared");
+    }
+
+    /**
+     * Fill the segmented tiles of a blob with the results found in the cache.
+     * Raw tiles found are removed from the blob, so that they are not sent
+     * 
+     * @param blob  blob with raw tiles
+     * @return number of tiles found
+     */
+    public int lookup(Blob blob) {
+        TileStore rawtiles = blob.getRawTiles();
+        int[] indices = rawtiles.indices();
+        AtomicInteger found = new AtomicInteger();
+
+        Parallel.forEach(Parallel.getThreads(), indices.length, i -> {
+            String key = key(blob, rawtiles.get(indices[i]));
+            File f = new File(folder, key + ".png");
+
+            synchronized (index) {
+                if (index.entries.get(key) == null) return; // also marks the result as recently used
+            }
+
+            try {
+                byte[] data = Files.readAllBytes(f.toPath());
+                f.setLastModified(System.currentTimeMillis());
+                blob.addSegmentedTile(data, indices[i]);
+                rawtiles.remove(indices[i]);
+                found.incrementAndGet();
+            } catch (IOException e) {
+                forget(key);
+            }
+        });
+
+        if (found.get() > 0) IJ.log(found.get() + " of " + indices.length + " tiles found in the result cache");
+        return found.get();
+    }
+
+    /**
+     * Add the segmented tiles of a blob to the cache, for all raw tiles still in the blob
+     * 
+     * @param blob  blob with raw and segmented tiles
+     */
+    public void store(Blob blob) {
+        TileStore rawtiles = blob.getRawTiles();
+        int[] indices = rawtiles.indices();
+
+        Parallel.forEach(Parallel.getThreads(), indices.length, i -> {
+            byte[] result = blob.getSegmentedTiles().get(indices[i]);
+            if (result == null) return;
+
+            String key = key(blob, rawtiles.get(indices[i]));
+            File f = new File(folder, key + ".png");
+            try {
+                // Written under another name first, so that lookups never read a partial file
+                File tmp = new File(folder, key + "." + Thread.currentThread().getId() + ".tmp");
+                Files.write(tmp.toPath(), result);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                add(key, result.length);
+            } catch (IOException e) {
+                IJ.log("Cannot write result cache file " + f.getPath() + ": " + e.getMessage());
+            }
+        });
+
+        evict();
+    }
+
+    /*
+     * Key of a tile: SHA-256 of model, tile parameters and tile content
+     */
+    private String key(Blob blob, byte[] tile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(blob.getTileParameters().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(tile);
+
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void add(String key, long size) {
+        synchronized (index) {
+            Long old = index.entries.put(key, size);
+            index.total += size - (old == null ? 0 : old);
+        }
+    }
+
+    private void forget(String key) {
+        synchronized (index) {
+            Long old = index.entries.remove(key);
+            if (old != null) index.total -= old;
+        }
+    }
+
+    /*
+     * Delete least recently used results until the cache fits in its maximum size
+     */
+    private void evict() {
+        synchronized (index) {
+            Iterator<Map.Entry<String, Long>> it = index.entries.entrySet().iterator();
+            while (index.total > maxsize && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                new File(folder, entry.getKey() + ".png").delete();
+                index.total -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Load results of previous sessions, in order of last use
+     */
+    private void scan() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".png") || name.endsWith(".tmp"));
+        if (files == null) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                f.delete(); // left by an interrupted run
+            } else {
+                add(name.substring(0, name.length() - ".png".length()), f.length());
+            }
+        }
+        evict();
+    }
+
+    /*
+     * Cache folder from the Wid-U settings
+     */
+    private static File getFolder() {
+        return new File(Prefs.get("ch.irb.widu.localcache", System.getProperty("java.io.tmpdir")), FOLDER);
+    }
+
+    /*
+     * Maximum cache size from the Wid-U settings, in MB. 0 disables the cache
+     */
+    private static long getMaxSize() {
+        try {
+            return Long.parseLong(Prefs.get("ch.irb.widu.resultcache", "0")) << 20;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.measure.ResultsTable;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of the phases of a Wid-U run: resize, tile encode, upload, queue wait, inference, download and reassembly.
+ * 
+ * Code doing the work of a phase opens a span with begin and closes it with end, giving the tiles and bytes processed.
+ * Spans are added to the report of the run of the thread that begins them, if any, and also sent as JFR events (ch.irb.WidU.Phase, see PhaseEvent.java) 
+ * when the JVM supports Flight Recorder, e.g. to record a run with -XX:StartFlightRecording.
+ * <p>
+ * Phases run on several threads at the same time, so for each phase the report gives both the time summed over all spans 
+ * and the wall time from the first span to the end of the last one. Throughputs are computed on wall time.
+ * At the end of the run, the report is shown as a ResultsTable and saved as a JSON file.
+ * <p>
+ * The report of a run belongs to the thread that starts it, and to the threads started by this thread afterwards
+ * (pipeline stages, parallel loops, transfers), so that runs at the same time, e.g. a batch and a single image, 
+ * keep their timings apart.
+ * 
+ * @author Diego Morone
+ */
+public class RunReport {
+
+    /** Phases of a run */
+    public enum Phase {
+        RESIZE("Resize"),
+        ENCODE("Tile encode"),
+        UPLOAD("Upload"),
+        QUEUE("Queue wait"),
+        INFERENCE("Inference"),
+        DOWNLOAD("Download"),
+        REASSEMBLY("Reassembly");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final boolean JFR = isFlightRecorderAvailable();
+    private static final InheritableThreadLocal<RunReport> current = new InheritableThreadLocal<RunReport>();
+
+    private final String title;
+    private final String backend;
+    private final long started = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    private volatile long end = -1;
+    private final Totals[] totals = new Totals[Phase.values().length];
+
+    /*
+     * Sums of the spans of a phase. Updated concurrently by the threads of the run
+     */
+    private static class Totals {
+        final LongAdder count = new LongAdder();
+        final LongAdder tiles = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+
+        long wall() {
+            return count.sum() > 0 ? last.get() - first.get() : 0;
+        }
+    }
+
+    private RunReport(String title, String backend) {
+        this.title = title;
+        this.backend = backend;
+        for (int i = 0; i < totals.length; i++) totals[i] = new Totals();
+    }
+
+    /**
+     * Start the report of a new run. Spans begun from now on in this thread, and in the threads it starts, 
+     * are added to it, until finish
+     * 
+     * @param title     title of the image or folder segmented
+     * @param backend   backend used, see Backend.java
+     * @return report of the run
+     */
+    public static RunReport start(String title, String backend) {
+        RunReport report = new RunReport(title, backend);
+        current.set(report);
+        return report;
+    }
+
+    /**
+     * @return true if the run report is enabled in the Wid-U settings
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Prefs.get("ch.irb.widu.report", "true"));
+    }
+
+    /**
+     * End the run. Spans begun afterwards are not added to this report
+     */
+    public void finish() {
+        end = System.nanoTime();
+        if (current.get() == this) current.remove();
+    }
+
+    /**
+     * Open a span of a phase, in the report of the run of this thread
+     * 
+     * @param phase phase of the work about to be done
+     * @return span, to be closed with end
+     */
+    public static Span begin(Phase phase) {
+        RunReport report = current.get();
+        return new Span(phase, report != null && report.end < 0 ? report : null);
+    }
+
+    /**
+     * Work of a phase, from begin to end
+     */
+    public static final class Span {
+        private final Phase phase;
+        private final RunReport report;
+        private final long start;
+        private final Object event;
+
+        private Span(Phase phase, RunReport report) {
+            this.phase = phase;
+            this.report = report;
+            this.event = JFR ? PhaseEvent.begin(phase) : null;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * @return phase of the span
+         */
+        public Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * Close the span
+         * 
+         * @param tiles number of tiles processed
+         * @param bytes number of bytes processed, e.g. sent or encoded
+         */
+        public void end(long tiles, long bytes) {
+            long now = System.nanoTime();
+            if (report != null) report.add(phase, start, now, tiles, bytes);
+            if (event != null) PhaseEvent.commit(event, tiles, bytes);
+        }
+
+        /**
+         * Close the span, without tiles or bytes
+         */
+        public void end() {
+            end(0, 0);
+        }
+    }
+
+    private void add(Phase phase, long from, long to, long tiles, long bytes) {
+        Totals t = totals[phase.ordinal()];
+        t.count.increment();
+        t.tiles.add(tiles);
+        t.bytes.add(bytes);
+        t.nanos.add(to - from);
+        t.first.accumulateAndGet(from, Math::min);
+        t.last.accumulateAndGet(to, Math::max);
+    }
+
+    /*
+     * Flight Recorder events are only available from Java 8u262 (OpenJDK) or Java 11
+     */
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private double seconds() {
+        return ((end < 0 ? System.nanoTime() : end) - start) / 1e9;
+    }
+
+    /**
+     * Summary of the run, one row per phase and a row for the whole run
+     * 
+     * @return table with count of spans, tiles, MB, summed time, wall time and throughputs of each phase
+     */
+    public ResultsTable toTable() {
+        ResultsTable rt = new ResultsTable();
+        for (Phase phase : Phase.values()) {
+            Totals t = totals[phase.ordinal()];
+            if (t.count.sum() == 0) continue;
+            double wall = t.wall() / 1e9;
+            rt.incrementCounter();
+            rt.addValue("Phase", phase.label);
+            rt.addValue("Count", t.count.sum());
+            rt.addValue("Tiles", t.tiles.sum());
+            rt.addValue("MB", t.bytes.sum() / 1e6);
+            rt.addValue("Time (s)", t.nanos.sum() / 1e9);
+            rt.addValue("Wall (s)", wall);
+            rt.addValue("MB/s", wall > 0 ? t.bytes.sum() / 1e6 / wall : 0);
+            rt.addValue("Tiles/s", wall > 0 ? t.tiles.sum() / wall : 0);
+        }
+        rt.incrementCounter();
+        rt.addValue("Phase", "Total");
+        rt.addValue("Wall (s)", seconds());
+        return rt;
+    }
+
+    /**
+     * Show the summary in the "Wid-U Report" window, or in the log without a display
+     */
+    public void show() {
+        if (GraphicsEnvironment.isHeadless()) {
+            log();
+        } else {
+            toTable().show("Wid-U Report");
+        }
+    }
+
+    /**
+     * Write the summary to the log, one line per phase
+     */
+    public void log() {
+        for (Phase phase : Phase.values()) {
+            Totals t = totals[phase.ordinal()];
+            if (t.count.sum() == 0) continue;
+            double wall = t.wall() / 1e9;
+            IJ.log(String.format("%-12s %6d tiles %9.2f MB %8.2f s (wall %.2f s, %.1f MB/s, %.1f tiles/s)", 
+                phase.label, t.tiles.sum(), t.bytes.sum() / 1e6, t.nanos.sum() / 1e9, wall,
+                wall > 0 ? t.bytes.sum() / 1e6 / wall : 0, wall > 0 ? t.tiles.sum() / wall : 0));
+        }
+        IJ.log(String.format("%-12s %.2f s", "Total", seconds()));
+    }
+
+    /**
+     * Save the summary as JSON
+     * 
+     * @param file  file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"title\": ").append(quote(title)).append(",\n");
+        sb.append("  \"backend\": ").append(quote(backend)).append(",\n");
+        sb.append("  \"started\": ").append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date(started)))).append(",\n");
+        sb.append("  \"seconds\": ").append(format(seconds())).append(",\n");
+        sb.append("  \"phases\": [");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            Totals t = totals[phase.ordinal()];
+            if (t.count.sum() == 0) continue;
+            sb.append(separator);
+            sb.append("    {\"phase\": ").append(quote(phase.name().toLowerCase()))
+                .append(", \"count\": ").append(t.count.sum())
+                .append(", \"tiles\": ").append(t.tiles.sum())
+                .append(", \"bytes\": ").append(t.bytes.sum())
+                .append(", \"seconds\": ").append(format(t.nanos.sum() / 1e9))
+                .append(", \"wall\": ").append(format(t.wall() / 1e9)).append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.isDirectory() && !folder.mkdirs()) throw new IOException("cannot create " + folder);
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Show the summary and save it in the file, if enabled in the Wid-U settings
+     * 
+     * @param file  JSON file to write
+     */
+    public void publish(File file) {
+        if (!isEnabled()) return;
+        show();
+        try {
+            save(file);
+            IJ.log("Run report saved in " + file.getPath());
+        } catch (IOException e) {
+            IJ.log("Cannot write run report " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Default file of the reports of single images, in a folder of the local cache folder
+     * 
+     * @return new file named after the current time
+     */
+    public static File getDefaultFile() {
+        File folder = new File(Prefs.get("ch.irb.widu.localcache", System.getProperty("java.io.tmpdir")), "widu-reports");
+        return new File(folder, "widu-report-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
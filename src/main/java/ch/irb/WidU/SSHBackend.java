@@ -0,0 +1,214 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Segmentation on a remote server: tiles are sent over SSH to the cache folder, 
+ * the command adds them to the job queue of the server, and results are copied back. See SSHConnection.java
+ * <p>
+ * The connection is opened at the first blob submitted, so that runs answered by the result cache never connect.
+ * <p>
+ * Jobs are resumable: if the connection drops, the backend connects again and continues the job where it stopped,
+ * up to RETRIES times. Jobs still unfinished are resumed the next time the same tiles are segmented, 
+ * e.g. after a Fiji restart. See JobManifest.java
+ * Resumed jobs are submitted again if the server lost them, e.g. after a restart of the server. If the job queue
+ * cannot tell, resumed jobs are given up after an hour without results.
+ * 
+ * @author Diego Morone
+ */
+public class SSHBackend implements Backend {
+
+    private final String hostname;
+    private final Integer port;
+    private final String username;
+    private final String cachefolder;
+    private final String command;
+
+    private SSHConnection ssh = null;
+
+    private static final int RETRIES = 3; // new connections after a dropped connection, for each step of a job
+    private static final long RESUMETIMEOUT = 60 * 60 * 1000; // ms to wait for a resumed job the server may have lost
+
+    // Manifests of submitted jobs, by blob UUID
+    private final Map<String, JobManifest> jobs = new ConcurrentHashMap<String, JobManifest>();
+
+    // Resumed jobs that could not be found in the job queue of the server, by blob UUID
+    private final Set<String> unconfirmed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Initialize a new backend. Does not connect yet
+     * 
+     * @param hostname      URL or IP to connect to
+     * @param port          SSH port
+     * @param username      SSH username
+     * @param cachefolder   remote folder for the tiles
+     * @param command       command to perform segmentation
+     */
+    public SSHBackend(String hostname, Integer port, String username, String cachefolder, String command) {
+        this.hostname = hostname;
+        this.port = port;
+        this.username = username;
+        this.cachefolder = cachefolder;
+        this.command = command.replace(System.getProperty("file.separator"), "/");
+    }
+
+    /**
+     * Open connection, or the connection opened before
+     * 
+     * @return connection to the server
+     */
+    public synchronized SSHConnection getConnection() {
+        if (ssh == null) ssh = new SSHConnection(hostname, port, username, cachefolder);
+        return ssh;
+    }
+
+    /*
+     * Drop a connection that failed, so that the next getConnection connects again with a new session
+     */
+    private synchronized void reconnect(SSHConnection failed, int attempt) {
+        if (ssh == failed) {
+            failed.invalidate();
+            ssh = null;
+        }
+        IJ.log("Connection lost, connecting again (" + (attempt + 1) + "/" + RETRIES + ")");
+        try {
+            Thread.sleep(2000L * (attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void submit(Blob blob) {
+        // May give the blob the UUID of a previous job with the same tiles
+        JobManifest job = JobManifest.open(blob, getModel());
+        jobs.put(blob.getID(), job);
+
+        for (int attempt = 0; ; attempt++) {
+            SSHConnection ssh = getConnection();
+            ssh.track(blob, job);
+
+            // Send blob to cachefolder, and add segmentation with Tensorflow to the job queue
+            if (ssh.sendBlob(blob) && (isQueued(ssh, blob, job) || ssh.submit(blob, command))) return;
+
+            if (ssh.isConnected()) return;
+            if (attempt == RETRIES || Thread.currentThread().isInterrupted()) {
+                IJ.error("Wid-U", "Connection lost. The job will resume the next time these images are segmented");
+                return;
+            }
+            reconnect(ssh, attempt);
+        }
+    }
+
+    @Override
+    public boolean collect(Blob blob) {
+        JobManifest job = jobs.remove(blob.getID());
+        if (job == null) return false;
+        if (!job.isSubmitted()) {
+            job.close();
+            return false;
+        }
+
+        long timeout = unconfirmed.remove(blob.getID()) ? RESUMETIMEOUT : 0;
+        for (int attempt = 0; ; attempt++) {
+            SSHConnection ssh = getConnection();
+            ssh.track(blob, job);
+
+            // Wait for the job, and get back files
+            if (ssh.waitFor(blob, timeout) && ssh.getremoteBlob(blob)) {
+                // Delete all files for process on server
+                ssh.deleteremoteBlob(blob);
+                job.delete();
+                return true;
+            }
+
+            if (ssh.isConnected()) {
+                // Failed on the server, or given up, the job cannot be resumed
+                job.delete();
+                return false;
+            }
+            if (attempt == RETRIES || Thread.currentThread().isInterrupted()) {
+                IJ.error("Wid-U", "Connection lost. The job will resume the next time these images are segmented");
+                job.close();
+                return false;
+            }
+            reconnect(ssh, attempt);
+        }
+    }
+
+    /*
+     * Whether the job of a blob is already in the job queue of the server. Jobs submitted by a previous run
+     * are looked up, and submitted again if the server lost them
+     */
+    private boolean isQueued(SSHConnection ssh, Blob blob, JobManifest job) {
+        if (!job.isSubmitted()) return false;
+
+        Boolean known = ssh.isKnown(blob);
+        if (known == null) {
+            unconfirmed.add(blob.getID());
+        } else if (!known) {
+            IJ.log("Job "+ blob.getID() +" not found on the server, submitting it again");
+        }
+        return known == null || known;
+    }
+
+    @Override
+    public String getModel() {
+        return username + "@" + hostname + ":" + port + " " + command;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (JobManifest job : jobs.values()) job.close();
+        jobs.clear();
+        unconfirmed.clear();
+        if (ssh != null) ssh.disconnect();
+        ssh = null;
+    }
+}
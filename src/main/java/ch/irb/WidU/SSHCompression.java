@@ -0,0 +1,233 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+import com.jcraft.jsch.*;
+
+/**
+ * Compression of the SSH connection.
+ * 
+ * Tiles are PNG files, already compressed, so SSH compression mostly costs CPU on both ends. 
+ * The mode is set in the Wid-U settings:
+ * - none: no compression
+ * - fast: zlib level 1
+ * - max: zlib level 9
+ * - auto: starts without compression, then the first blob sent on each session is used to measure the link 
+ *   throughput and the compression gain on the actual tiles, and the fastest mode is applied with a key re-exchange.
+ *   Pooled sessions keep the mode picked, so later runs on the same session skip the probe
+ * 
+ * @author Diego Morone
+ */
+public class SSHCompression {
+
+    public static final String NONE = "none";
+    public static final String FAST = "fast";
+    public static final String MAX = "max";
+    public static final String AUTO = "auto";
+
+    public static final String[] MODES = new String[]{NONE, FAST, MAX, AUTO};
+
+    private static final String MODEKEY = "widu.compression"; // mode in use, stored in the session config
+    private static final String PROBEDKEY = "widu.compression.probed"; // set once the session was probed
+    private static final int PROBESIZE = 4 << 20; // maximum bytes sent to measure the link
+    private static final int PACKETSIZE = 32768; // SSH flushes zlib at the end of each packet, keeping its dictionary
+
+    /**
+     * Compression mode from the Wid-U settings. Defaults to auto
+     * 
+     * @return one of MODES
+     */
+    public static String getMode() {
+        String mode = Prefs.get("ch.irb.widu.compression", AUTO);
+        for (String m : MODES) {
+            if (m.equals(mode)) return m;
+        }
+        return AUTO;
+    }
+
+    /**
+     * Set the compression of a session before connecting. Auto starts without compression.
+     * 
+     * @param session   session to configure
+     * @param mode      one of MODES
+     */
+    public static void configure(Session session, String mode) {
+        String methods = (FAST.equals(mode) || MAX.equals(mode)) ? "zlib@openssh.com,zlib,none" : "none";
+        session.setConfig("compression.s2c", methods);
+        session.setConfig("compression.c2s", methods);
+        session.setConfig("compression_level", MAX.equals(mode) ? "9" : "1");
+        session.setConfig(MODEKEY, AUTO.equals(mode) ? NONE : mode);
+    }
+
+    /**
+     * Compression mode currently negotiated on a session
+     * 
+     * @param session   connected session
+     * @return one of none, fast, max
+     */
+    public static String current(Session session) {
+        String mode = session.getConfig(MODEKEY);
+        return mode == null ? NONE : mode;
+    }
+
+    /**
+     * Change the compression of a connected session, by re-exchanging keys with the server
+     * 
+     * @param session   connected session
+     * @param mode      one of none, fast, max
+     * @throws Exception if the key exchange cannot be started
+     */
+    public static void switchTo(Session session, String mode) throws Exception {
+        if (mode.equals(current(session))) return;
+        configure(session, mode);
+        session.rekey();
+    }
+
+    /**
+     * Measure link throughput and compression gain on the raw tiles of a blob, and switch the session 
+     * to the fastest mode. Each session is probed once: later calls return the mode picked before.
+     * A sample of the tiles is uploaded without compression to a temporary file in folder.
+     * Compression is counted as taking place before the transfer, so modes are compared by 
+     * deflate time + compressed size / link throughput, against size / link throughput.
+     * 
+     * @param session       connected session
+     * @param channelSftp   connected channel of the session
+     * @param folder        remote folder for the temporary file
+     * @param blob          blob with raw tiles
+     * @return the mode in use after the probe
+     */
+    public static String probe(Session session, ChannelSftp channelSftp, String folder, Blob blob) {
+        synchronized (session) {
+            if (session.getConfig(PROBEDKEY) != null) return current(session);
+            String mode = measure(session, channelSftp, folder, blob);
+            session.setConfig(PROBEDKEY, "true");
+            return mode;
+        }
+    }
+
+    /*
+     * Probe of a session, see probe
+     */
+    private static String measure(Session session, ChannelSftp channelSftp, String folder, Blob blob) {
+        byte[] sample = sample(blob);
+        if (sample.length == 0) return current(session);
+
+        String remotepath = folder + "/" + blob.getID() + "-probe";
+
+        try {
+            switchTo(session, NONE);
+
+            long start = System.nanoTime();
+            channelSftp.put(new ByteArrayInputStream(sample), remotepath);
+            channelSftp.rm(remotepath);
+            double link = sample.length / ((System.nanoTime() - start) / 1e9); // bytes/s
+
+            double none = sample.length / link;
+            double[] fast = deflate(sample, 1);
+            double[] max = deflate(sample, 9);
+            double tfast = fast[1] + fast[0] / link;
+            double tmax = max[1] + max[0] / link;
+
+            String mode = NONE;
+            if (tfast < none && tfast <= tmax) mode = FAST;
+            else if (tmax < none) mode = MAX;
+
+            IJ.log(String.format("Compression probe: link %.1f MB/s, fast %.0f%% of size, max %.0f%% of size. Using %s", 
+                link / 1e6, 100 * fast[0] / sample.length, 100 * max[0] / sample.length, mode));
+
+            switchTo(session, mode);
+        } catch (Exception e) {
+            IJ.log("Compression probe failed, keeping " + current(session) + ". Error: " + e.getMessage());
+        }
+
+        return current(session);
+    }
+
+    /*
+     * Concatenated raw tiles, each tile once, up to PROBESIZE. Repeating tiles would let zlib 
+     * find them in its dictionary and overestimate the compression gain
+     */
+    private static byte[] sample(Blob blob) {
+        TileStore tiles = blob.getRawTiles();
+
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (int index : tiles.indices()) {
+            byte[] tile = tiles.get(index);
+            int len = Math.min(tile.length, PROBESIZE - sample.size());
+            sample.write(tile, 0, len);
+            if (sample.size() >= PROBESIZE) break;
+        }
+        return sample.toByteArray();
+    }
+
+    /*
+     * Compress data in packets as SSH does, with one stream flushed at the end of each packet.
+     * Returns compressed size and time in seconds
+     */
+    private static double[] deflate(byte[] data, int level) {
+        Deflater deflater = new Deflater(level);
+        byte[] out = new byte[PACKETSIZE + 1024];
+        long size = 0;
+
+        long start = System.nanoTime();
+        for (int off = 0; off < data.length; off += PACKETSIZE) {
+            deflater.setInput(data, off, Math.min(PACKETSIZE, data.length - off));
+            int n;
+            while ((n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH)) > 0) {
+                size += n;
+                if (n < out.length) break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        deflater.end();
+
+        return new double[]{size, seconds};
+    }
+}
@@ -44,14 +44,23 @@ package ch.irb.WidU;
 import ij.IJ;
 import ij.Prefs;
 
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
@@ -66,11 +75,30 @@ import com.jcraft.jsch.*;
  */
 public class SSHConnection {
 
+    private static final int MAXSESSIONS = 10; // channels per connection allowed by OpenSSH by default
+
     private Session session;
     private String folder;
+    private final boolean packed; // all tiles in a single zip file, see TilePack.java
+    private final boolean events; // command run with --wait, the server streams job events
+    private final int channels; // concurrent SFTP channels for tiles
+    private final JobListener listener; // queue position and progress, shown in the status bar
+    private final int queueport; // job queue of the server, asked for its jobs over a forwarded port
+    private volatile boolean lost = false;
+
+    // Open exec channels of submitted jobs that stream events, by blob UUID
+    private final Map<String, BufferedReader> eventstreams = new ConcurrentHashMap<String, BufferedReader>();
+    private final Map<String, Channel> eventchannels = new ConcurrentHashMap<String, Channel>();
+
+    // Queue wait or inference of submitted jobs, by blob UUID, see RunReport.java
+    private final Map<String, RunReport.Span> jobspans = new ConcurrentHashMap<String, RunReport.Span>();
+
+    // Manifests of jobs that can be resumed, by blob UUID
+    private final Map<String, JobManifest> manifests = new ConcurrentHashMap<String, JobManifest>();
 
     /**
-     * Initialize new SSH connection
+     * Initialize new SSH connection. Packed tiles, server events, concurrent channels and the job queue port
+     * are taken from the Wid-U settings
      * 
      * @param hostname  URL or IP to connect to
      * @param port      SSH port
@@ -79,60 +107,235 @@ public class SSHConnection {
      */
     public SSHConnection(String hostname, Integer port, String username, String folder) {
         try{ 
-            this.session = newsession(hostname, port, username);
+            this.session = SessionPool.acquire(hostname, port, username, () -> newsession(hostname, port, username));
         } catch (Exception e) {
             IJ.error("Wid-U","Error during connection: "+ e.getMessage());
         }
         this.folder = folder;
+        this.packed = Boolean.parseBoolean(Prefs.get("ch.irb.widu.packed", "false"));
+        this.events = Boolean.parseBoolean(Prefs.get("ch.irb.widu.events", "false"));
+        this.channels = getChannels();
+        this.listener = new JobListener.Status();
+        this.queueport = Integer.parseInt(Prefs.get("ch.irb.widu.queueport", "65432"));
+    }
+
+    /**
+     * Number of concurrent SFTP channels from the Wid-U settings. Defaults to 4
+     * 
+     * @return number of channels, at least 1
+     */
+    public static int getChannels() {
+        int channels = 4;
+        try {
+            channels = Integer.parseInt(Prefs.get("ch.irb.widu.channels", "4"));
+        } catch (NumberFormatException e) {
+            // keep default
+        }
+        return Math.max(1, channels);
     }
 
     /**
-     * Get an image blob of raw images and send it to remote folder called widu-UUID
+     * Record uploads and submission of a blob in its job manifest, and skip tiles already uploaded before. 
+     * See JobManifest.java
+     * 
+     * @param blob      blob to segment
+     * @param manifest  manifest of the job of the blob
+     */
+    public void track(Blob blob, JobManifest manifest) {
+        manifests.put(blob.getID(), manifest);
+    }
+
+    /**
+     * @return true if the SSH session is still connected. A session that failed on a broken
+     *         connection counts as disconnected, even before JSch notices it
+     */
+    public boolean isConnected() {
+        return !lost && session != null && session.isConnected();
+    }
+
+    /**
+     * Get an image blob of raw images and send it to remote folder called widu-UUID.
+     * If the blob has a job manifest, tiles already on the server are not sent again
      * 
      * @param blob  raw images. See Blob.java
+     * @return true if all tiles were sent
      */
-    public void sendBlob(Blob blob) {
+    public boolean sendBlob(Blob blob) {
 
-        Channel channel = null;
         ChannelSftp channelSftp = null;
 
         // send files here. Composed with cachefolder + blob UUID
         String rawfolder = Paths.get(this.folder, blob.getID()).toString().replace(System.getProperty("file.separator"), "/"); 
+        JobManifest manifest = manifests.get(blob.getID());
+        boolean ok = false;
 
         try {
             
-            channel = session.openChannel("sftp");
-            channel.connect();
-    
-            channelSftp = (ChannelSftp) channel;
+            channelSftp = SessionPool.openSftp(session);
             
-            channelSftp.mkdir(rawfolder);
+            // Tiles of a resumed job already on the server, with their size
+            Map<String, Long> remote = manifest != null ? list(channelSftp, rawfolder) : null;
+            if (remote == null) channelSftp.mkdir(rawfolder);
             channelSftp.cd(rawfolder); 
 
-            HashMap<String, byte[]> blobtiles = blob.getRawTiles();
-            for (Map.Entry<String, byte[]> entry : blobtiles.entrySet()) {
-                String remotepath =  Paths.get(rawfolder, entry.getKey()).toString().replace(System.getProperty("file.separator"), "/");
-                IJ.log("Sending file: " + entry.getKey());
-                ByteArrayInputStream f = new ByteArrayInputStream(entry.getValue());
-                channelSftp.put(f, remotepath);
+            // Pick the compression on the first tiles sent, if automatic
+            if (SSHCompression.AUTO.equals(SSHCompression.getMode())) {
+                SSHCompression.probe(session, channelSftp, this.folder.replace(System.getProperty("file.separator"), "/"), blob);
+            }
+
+            // Images of a multi-image job, see MultiBlob.java
+            if (blob.getManifest() != null) {
+                channelSftp.put(new ByteArrayInputStream(blob.getManifest().getBytes(StandardCharsets.UTF_8)), MultiBlob.MANIFEST);
+            }
+
+            TileStore blobtiles = blob.getRawTiles();
+            if (packed) {
+                // All tiles streamed in a single file
+                String remotepath =  Paths.get(rawfolder, TilePack.RAWPACK).toString().replace(System.getProperty("file.separator"), "/");
+                if (remote != null && remote.containsKey(TilePack.RAWPACK) && manifest.isUploaded(TilePack.RAWPACK)) {
+                    IJ.log("Tiles already sent in " + TilePack.RAWPACK);
+                } else {
+                    IJ.log("Sending " + blobtiles.size() + " tiles in " + TilePack.RAWPACK);
+                    RunReport.Span span = RunReport.begin(RunReport.Phase.UPLOAD);
+                    long bytes = TilePack.write(blob, channelSftp.put(remotepath));
+                    span.end(blobtiles.size(), bytes);
+                    if (manifest != null) manifest.uploaded(TilePack.RAWPACK);
+                }
+            } else {
+                SessionPool.closeSftp(session, channelSftp);
+                channelSftp = null;
+
+                int[] indices = blobtiles.indices();
+                if (remote != null && !remote.isEmpty()) {
+                    // Only tiles not completely uploaded before
+                    int n = 0;
+                    for (int index : indices) {
+                        String name = blob.getTileName(index);
+                        Long size = remote.get(name);
+                        if (size == null || size != blobtiles.get(index).length || !manifest.isUploaded(name)) indices[n++] = index;
+                    }
+                    IJ.log("Resuming upload: " + (indices.length - n) + " tiles already sent");
+                    indices = Arrays.copyOf(indices, n);
+                }
+
+                transfer(indices, RunReport.Phase.UPLOAD, (sftp, index) -> {
+                    String name = blob.getTileName(index);
+                    String remotepath =  Paths.get(rawfolder, name).toString().replace(System.getProperty("file.separator"), "/");
+                    byte[] tile = blobtiles.get(index);
+                    sftp.put(new ByteArrayInputStream(tile), remotepath);
+                    if (manifest != null) manifest.uploaded(name);
+                    return tile.length;
+                });
             }
+            ok = true;
 
         } catch (Exception e) {
-            IJ.error("Wid-U", "File transfer test failed. Error: "+ e.getMessage());
+            fail("File transfer test failed. Error: "+ e.getMessage(), e);
         } finally {
-            channelSftp.exit();
-            IJ.log("SFTP Channel exited.");
-            channel.disconnect();
-            IJ.log("Channel disconnected.");
+            SessionPool.closeSftp(session, channelSftp);
         }
-        IJ.log("Files sent OK");
+        if (ok) IJ.log("Files sent OK");
+        return ok;
 
+    }
 
+    /*
+     * Files of a remote folder with their size, or null if the folder does not exist
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> list(ChannelSftp channelSftp, String path) throws SftpException {
+        Map<String, Long> files = new HashMap<String, Long>();
+        try {
+            for (ChannelSftp.LsEntry entry : (Collection<ChannelSftp.LsEntry>) channelSftp.ls(path)) {
+                if (!entry.getAttrs().isDir()) files.put(entry.getFilename(), entry.getAttrs().getSize());
+            }
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return null;
+            throw e;
+        }
+        return files;
+    }
+
+    /*
+     * Show an error, or only log it if the connection dropped, since the job can be resumed
+     */
+    private void fail(String message, Exception e) {
+        if (isConnectionError(e)) lost = true;
+        if (isConnected()) {
+            IJ.error("Wid-U", message);
+        } else {
+            IJ.log(message + " (connection lost)");
+        }
+    }
+
+    /*
+     * True if the error comes from the connection rather than from the server: a broken socket or
+     * channel, a session that is down, or an SFTP request without answer
+     */
+    private static boolean isConnectionError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) return true;
+            if (t instanceof JSchException && String.valueOf(t.getMessage()).contains("session is down")) return true;
+            if (t instanceof SftpException) {
+                int id = ((SftpException) t).id;
+                if (id == ChannelSftp.SSH_FX_CONNECTION_LOST || id == ChannelSftp.SSH_FX_NO_CONNECTION) return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Transfers one tile over an SFTP channel, returning the number of bytes transferred
+     */
+    private interface TileTransfer {
+        long apply(ChannelSftp sftp, int index) throws Exception;
+    }
+
+    /*
+     * Transfers tiles over concurrent SFTP channels of the session. Each channel takes the next
+     * tile of the list when done with the previous one, so that slow transfers do not hold back the others.
+     * Shows progress while running, see Progress.java, and logs the aggregate throughput at the end
+     */
+    private void transfer(int[] indices, RunReport.Phase phase, TileTransfer task) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        // Exec channels kept open for server events count in the channels allowed by the server
+        int budget = Math.max(1, MAXSESSIONS - eventchannels.size());
+        int nchannels = Math.min(Math.min(channels, budget), Math.max(1, indices.length));
+        String verb = phase == RunReport.Phase.UPLOAD ? "Sent" : "Received";
+        Progress progress = new Progress(verb, indices.length);
+
+        RunReport.Span span = RunReport.begin(phase);
+        long start = System.nanoTime();
+        Parallel.forEach(nchannels, nchannels, c -> {
+            ChannelSftp sftp = null;
+            try {
+                sftp = SessionPool.openSftp(session);
+                int i;
+                while (error.get() == null && (i = next.getAndIncrement()) < indices.length) {
+                    long size = task.apply(sftp, indices[i]);
+                    bytes.addAndGet(size);
+                    progress.step(size);
+                }
+            } catch (Exception e) {
+                error.compareAndSet(null, e);
+            } finally {
+                SessionPool.closeSftp(session, sftp);
+            }
+        });
+        if (error.get() != null) throw error.get();
+        span.end(indices.length, bytes.get());
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mb = bytes.get() / 1e6;
+        IJ.log(String.format("%s %d tiles (%.1f MB) in %.1f s, %.1f MB/s over %d channels", 
+            verb, indices.length, mb, seconds, seconds > 0 ? mb / seconds : 0, nchannels));
     }
 
     /**
      * Execute a segmentation command. Runs the command, and sends to ImageJ log all output
-     * Then checks every 5s if the file done.txt has been created.
+     * Then waits for the job to be done, see waitFor.
      * 
      * @param   blob    blob to segment
      * @param   command command to perform segmentation
@@ -140,18 +343,36 @@ public class SSHConnection {
      */
     public boolean exec(Blob blob, String command) {
 
+        submit(blob, command);
+        return waitFor(blob);
+        
+    }
+
+    /**
+     * Runs the segmentation command for a blob and sends to ImageJ log all output.
+     * The command only adds the blob to the job queue of the server, so this method returns
+     * as soon as the job is queued. Use waitFor to know when results are ready.
+     * <p>
+     * With server events, the exec channel is kept open until waitFor reads the completion of the job.
+     * The job counts as queued once the server sends QUEUED, or if the command ends with exit status 0.
+     * 
+     * @param   blob    blob to segment
+     * @param   command command to perform segmentation
+     * @return  true if the command ran
+     */
+    public boolean submit(Blob blob, String command) {
+
         StringBuilder outputBuffer = new StringBuilder();
 
         Channel channel = null;
-        ChannelSftp channelSftp = null;
         ChannelExec channelExec = null;
+        boolean keepopen = false;
+        boolean ok = false;
 
         String blobfolder = Paths.get(this.folder, blob.getID()).toString().replace(System.getProperty("file.separator"), "/"); 
-        command = command + " " + blobfolder + "/";
+        command = command + (events ? " --wait " : " ") + blobfolder + "/";
         IJ.log(String.format("Running %s", command));
 
-        Boolean waitmore = true;
-
         // First send out the command and read the output buffer
         try {
             
@@ -160,68 +381,214 @@ public class SSHConnection {
             IJ.log("Add process to job queue");
 
             channelExec.setCommand(command);
-            InputStream commandOutput = channel.getInputStream();
+            BufferedReader commandOutput = new BufferedReader(new InputStreamReader(channel.getInputStream()));
 
             channel.connect();
-            int readByte = commandOutput.read();
 
-            while(readByte != 0xffffffff) {
-                outputBuffer.append((char)readByte);
-                readByte = commandOutput.read();
+            // Blocks until the command is done, or until the job is queued if the server sends events
+            String line;
+            while ((line = commandOutput.readLine()) != null) {
+                outputBuffer.append(line).append("\n");
+                if (events && line.startsWith("QUEUED")) {
+                    JobListener.dispatch(listener, blob, line);
+                    eventstreams.put(blob.getID(), commandOutput);
+                    eventchannels.put(blob.getID(), channel);
+                    keepopen = true;
+                    break;
+                }
             }
 
-            while(true){
-                if(channelExec.isClosed()){
-                    break;
+            // Output ended without QUEUED, e.g. a client.py without --wait: the command must have succeeded
+            if (events && !keepopen) {
+                int status = exitStatus(channel);
+                if (status != 0) {
+                    IJ.error("Wid-U", "Command run failed with exit status "+ status +". Server says: "+ outputBuffer.toString().trim());
+                    return false;
                 }
             }
+            ok = true;
+            JobManifest manifest = manifests.get(blob.getID());
+            if (ok && manifest != null) manifest.submitted();
+
+            // Without events, queue wait and inference cannot be told apart
+            jobspans.put(blob.getID(), RunReport.begin(events ? RunReport.Phase.QUEUE : RunReport.Phase.INFERENCE));
         } catch (IOException e) {
-            IJ.error("Wid-U", e.getMessage());
+            fail(e.getMessage(), e);
         } catch (JSchException je) {
-            IJ.error("Wid-U", je.getMessage());
+            fail(je.getMessage(), je);
         } finally {
             IJ.log(outputBuffer.toString());
-            channel.disconnect();
+            if (!keepopen && channel != null) channel.disconnect();
         }
+        return ok;
+    }
+
+    /*
+     * Exit status of a command whose output ended, waiting up to 5s for the channel to close. -1 if unknown
+     */
+    private static int exitStatus(Channel channel) {
+        try {
+            for (int i = 0; i < 500 && !channel.isClosed(); i++) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return channel.getExitStatus();
+    }
+
+    /**
+     * Checks that a job submitted by a previous run is still known to the server, since a restart of the server
+     * empties its job queue. The job is known if its results are ready, or if the job queue lists it as queued
+     * or running. The job queue is asked over a forwarded port, see WidUStatus.java
+     * 
+     * @param   blob    blob of the job
+     * @return  true if the job is known, false if the server lost it, null if the job queue cannot be reached
+     */
+    public Boolean isKnown(Blob blob) {
+        ChannelSftp channelSftp = null;
+        String path = Paths.get(this.folder, blob.getID(), "done.txt").toString().replace(System.getProperty("file.separator"), "/");
+        try {
+            channelSftp = SessionPool.openSftp(session);
+            channelSftp.lstat(path);
+            return true;
+        } catch (SftpException e) {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) return null;
+        } catch (JSchException e) {
+            return null;
+        } finally {
+            SessionPool.closeSftp(session, channelSftp);
+        }
+
+        int localport = -1;
+        try {
+            localport = session.setPortForwardingL(0, "localhost", queueport);
+            for (String line : WidUStatus.request("localhost", localport)) {
+                if (line.startsWith("JOB") && line.contains(blob.getID())) return true;
+            }
+            return false;
+        } catch (IOException | JSchException e) {
+            IJ.log("Cannot ask the job queue for job "+ blob.getID() +". Error: "+ e.getMessage());
+            return null;
+        } finally {
+            if (localport > 0) unforward(localport);
+        }
+    }
+
+    /**
+     * Waits for a submitted blob to be segmented. If the server streams events, blocks on them
+     * and returns as soon as the job is done. Otherwise checks for file UUID/done.txt,
+     * with increasing intervals up to 5s.
+     * 
+     * @param   blob    blob submitted for segmentation
+     * @return  true    returns true if everything goes fine
+     */
+    public boolean waitFor(Blob blob) {
+        return waitFor(blob, 0);
+    }
+
+    /**
+     * Waits for a submitted blob to be segmented, see waitFor(Blob). Gives up if file UUID/done.txt 
+     * does not appear within the timeout, e.g. for a resumed job that the server may have lost
+     * 
+     * @param   blob    blob submitted for segmentation
+     * @param   timeout ms to wait for done.txt, 0 to wait as long as it takes
+     * @return  true if the blob was segmented
+     */
+    public boolean waitFor(Blob blob, long timeout) {
+
+        BufferedReader eventstream = eventstreams.remove(blob.getID());
+        Channel eventchannel = eventchannels.remove(blob.getID());
+
+        // Jobs resumed after a restart were submitted by a previous run
+        RunReport.Span span = jobspans.remove(blob.getID());
+        if (span == null) span = RunReport.begin(eventstream != null ? RunReport.Phase.QUEUE : RunReport.Phase.INFERENCE);
+
+        if (eventstream != null) {
+            try {
+                String line;
+                while ((line = eventstream.readLine()) != null) {
+                    if (span.getPhase() == RunReport.Phase.QUEUE && (line.startsWith("RUNNING") || line.startsWith("PROGRESS"))) {
+                        span.end();
+                        span = RunReport.begin(RunReport.Phase.INFERENCE);
+                    }
+                    if (line.startsWith("DONE")) {
+                        span.end(blob.getRawTiles().size(), 0);
+                        listener.done(blob);
+                        IJ.log("Segmentation OK");
+                        return true;
+                    } else if (line.startsWith("FAILED")) {
+                        IJ.error("Wid-U", "Command run failed. Server says: "+ line);
+                        return false;
+                    }
+                    JobListener.dispatch(listener, blob, line);
+                }
+                IJ.log("Server events interrupted, checking for results");
+            } catch (IOException e) {
+                IJ.log("Server events interrupted, checking for results. Error: "+ e.getMessage());
+            } finally {
+                eventchannel.disconnect();
+            }
+        }
+
+        return pollDone(blob, span, timeout);
+    }
+
+    /*
+     * Checks for file UUID/done.txt, with increasing intervals up to 5s, for at most timeout ms if not 0.
+     * For servers that do not send events
+     */
+    private boolean pollDone(Blob blob, RunReport.Span span, long timeout) {
+
+        ChannelSftp channelSftp = null;
+
+        String blobfolder = Paths.get(this.folder, blob.getID()).toString().replace(System.getProperty("file.separator"), "/"); 
+
+        Boolean waitmore = true;
+        boolean ok = false;
+        long interval = 250;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
 
-        // When command is completed, check every 5s for file UUID/done.txt. If there, returns true
         try {
             
-            channel = session.openChannel("sftp");
-            channel.connect();
-    
-            channelSftp = (ChannelSftp) channel;
+            channelSftp = SessionPool.openSftp(session);
 
             channelSftp.cd(blobfolder);
 
             String path = Paths.get(this.folder, blob.getID(), "done.txt").toString().replace(System.getProperty("file.separator"), "/");
+            IJ.log("Please wait...");
             
             while (waitmore) {
-                try{Thread.sleep(5000);}catch(Exception ee){} // wait 5s
-                IJ.log("Please wait...");
-
                 try {
                     channelSftp.lstat(path);
                     waitmore = false;
                 } catch (SftpException e){
                     if(e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE){
+                       if (System.currentTimeMillis() > deadline) {
+                           IJ.log("No results after "+ timeout/60000 +" min, giving up on job "+ blob.getID());
+                           return false;
+                       }
                        waitmore = true;
+                       Thread.sleep(interval);
+                       interval = Math.min(2*interval, 5000);
                     } else {
                         // something else went wrong
                         throw e;
                     }
                 }
             }
+            ok = true;
+            span.end(blob.getRawTiles().size(), 0);
+            listener.done(blob);
 
         } catch (Exception e) {
-            IJ.error("Wid-U", "Command run failed. Error: "+ e.getMessage());
+            fail("Command run failed. Error: "+ e.getMessage(), e);
         } finally {
-            channelSftp.exit();
-            channel.disconnect();
-            IJ.log("Segmentation OK");
+            SessionPool.closeSftp(session, channelSftp);
+            if (ok) IJ.log("Segmentation OK");
         }
 
-        return true;
+        return ok;
         
     }
 
@@ -229,42 +596,57 @@ public class SSHConnection {
      * Get segmented files from remote widu-UUID/results folder. Info such as UUID are retrieved from blob.
      * Segmented images are stored in the same blob.
      * 
+     * Tiles already received, e.g. before the connection dropped, are not received again.
+     * 
      * @param blob  blob object to get and put info to
+     * @return true if all results were received
      */
-    public void getremoteBlob(Blob blob) {
-        Channel channel = null;
+    public boolean getremoteBlob(Blob blob) {
         ChannelSftp channelSftp = null;
+        boolean ok = false;
 
         String segmentedfolder = Paths.get(this.folder, blob.getID(), "results").toString().replace(System.getProperty("file.separator"), "/");
 
         try {
             
-            channel = session.openChannel("sftp");
-            channel.connect();
-    
-            channelSftp = (ChannelSftp) channel;
+            channelSftp = SessionPool.openSftp(session);
               
             channelSftp.cd(segmentedfolder); 
 
-            HashMap<String, byte[]> blobtiles = blob.getRawTiles();
-            for (Map.Entry<String, byte[]> entry : blobtiles.entrySet()) {
-                String key = entry.getKey();
-                String remotepath =  Paths.get(segmentedfolder, key).toString().replace(System.getProperty("file.separator"), "/");
-                IJ.log("Receiving file: " + key);
-                InputStream f  = channelSftp.get(remotepath);
-                byte[] tmp = readAllBytes(f);
-                blob.addSegmentedTile(tmp, key);
+            if (packed) {
+                // All tiles streamed in a single file
+                String remotepath =  Paths.get(segmentedfolder, TilePack.RESULTPACK).toString().replace(System.getProperty("file.separator"), "/");
+                RunReport.Span span = RunReport.begin(RunReport.Phase.DOWNLOAD);
+                long bytes = channelSftp.lstat(remotepath).getSize();
+                int count = TilePack.readSegmented(channelSftp.get(remotepath), blob);
+                span.end(count, bytes);
+                IJ.log("Received " + count + " tiles from " + TilePack.RESULTPACK);
+            } else {
+                SessionPool.closeSftp(session, channelSftp);
+                channelSftp = null;
+
+                // Tiles received before the connection dropped are not received again
+                TileStore segmented = blob.getSegmentedTiles();
+                int[] indices = Arrays.stream(blob.getRawTiles().indices()).filter(i -> !segmented.contains(i)).toArray();
+
+                transfer(indices, RunReport.Phase.DOWNLOAD, (sftp, index) -> {
+                    String key = blob.getTileName(index);
+                    String remotepath =  Paths.get(segmentedfolder, key).toString().replace(System.getProperty("file.separator"), "/");
+                    InputStream f  = sftp.get(remotepath);
+                    byte[] tmp = readAllBytes(f);
+                    blob.addSegmentedTile(tmp, index);
+                    return tmp.length;
+                });
             }
+            ok = true;
 
         } catch (Exception e) {
-            IJ.error("Wid-U", "File transfer test failed. Error: "+ e.getMessage());
+            fail("File transfer test failed. Error: "+ e.getMessage(), e);
         } finally {
-            channelSftp.exit();
-            IJ.log("SFTP Channel exited.");
-            channel.disconnect();
-            IJ.log("Channel disconnected.");
+            SessionPool.closeSftp(session, channelSftp);
         }
-        IJ.log("Files received OK");
+        if (ok) IJ.log("Files received OK");
+        return ok;
     }
 
     /**
@@ -273,27 +655,20 @@ public class SSHConnection {
      * @param inblob    easy way to get the foldername to delete
      */
     public void deleteremoteBlob(Blob inblob) {
-        Channel channel = null;
         ChannelSftp channelSftp = null;
 
         String path = Paths.get(this.folder, inblob.getID()).toString().replace(System.getProperty("file.separator"), "/");
 
         try {
             
-            channel = session.openChannel("sftp");
-            channel.connect();
-    
-            channelSftp = (ChannelSftp) channel;
+            channelSftp = SessionPool.openSftp(session);
               
             recursiveFolderDelete(channelSftp, path);
 
         } catch (Exception e) {
             IJ.error("Wid-U", "File transfer test failed. Error: "+ e.getMessage());
         } finally {
-            channelSftp.exit();
-            IJ.log("SFTP Channel exited.");
-            channel.disconnect();
-            IJ.log("Channel disconnected.");
+            SessionPool.closeSftp(session, channelSftp);
         }
         IJ.log("Files deleted OK");
     }
@@ -325,11 +700,48 @@ public class SSHConnection {
     }
 
     /**
-     * Disconnect open session and logs to IJ log
+     * Forward a local port to a port of the server, e.g. the job queue. The forward is closed with the session
+     * 
+     * @param remoteport    port on the server
+     * @return local port, or -1 if the forward could not be opened
+     */
+    public int forward(int remoteport) {
+        try {
+            return session.setPortForwardingL(0, "localhost", remoteport);
+        } catch (JSchException e) {
+            IJ.error("Wid-U", "Cannot forward port "+remoteport+". Error: "+ e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Close a forward opened with forward, while the session stays open for reuse
+     * 
+     * @param localport port returned by forward
+     */
+    public void unforward(int localport) {
+        try {
+            session.delPortForwardingL(localport);
+        } catch (JSchException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Give back the session to the pool and logs to IJ log. The session stays open for reuse
+     * for the time set in Wid-U settings, see SessionPool.java
      */
     public void disconnect() {
-        session.disconnect();
-        IJ.log("SSH connection terminated");
+        SessionPool.release(session);
+        IJ.log("SSH connection released");
+    }
+
+    /**
+     * Close the SSH session after a connection error, so that it is not reused. See SessionPool.invalidate
+     */
+    public void invalidate() {
+        SessionPool.invalidate(session);
+        IJ.log("SSH connection closed");
     }
   
     /*
@@ -352,16 +764,14 @@ public class SSHConnection {
         
         session=jsch.getSession(username, hostname, port);
 
-        // Establish file transfer with compression if possible
-        session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
-        session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
-        session.setConfig("compression_level", "9");
+        // Compression as set in the Wid-U settings, see SSHCompression.java
+        SSHCompression.configure(session, SSHCompression.getMode());
 
         // Check for auth method. Fallback is password
         Boolean needpassword = (Prefs.get("ch.irb.widu.auth", "Password") == "Password" )? true : false;
 
         if (needpassword) {
-            String password = promptPassphrase("Password for "+hostname);
+            String password = promptPassphrase("Password for "+hostname, "WIDU_PASSWORD");
             session.setPassword(password); 
         } else {
             String rsakey = Prefs.get("ch.irb.widu.rsapath", "");
@@ -370,14 +780,14 @@ public class SSHConnection {
                     jsch.addIdentity(rsakey);
                 } catch (JSchException e) {
                     try {
-                        String rsapass = promptPassphrase("Password for RSA key");
+                        String rsapass = promptPassphrase("Password for RSA key", "WIDU_PASSPHRASE");
                         jsch.addIdentity(rsakey, rsapass);
                     } catch (JSchException f) {
 
                     }
                 }
             } else {
-                String password = promptPassphrase("Password for "+hostname);
+                String password = promptPassphrase("Password for "+hostname, "WIDU_PASSWORD");
                 session.setPassword(password); 
             } 
         }
@@ -390,9 +800,20 @@ public class SSHConnection {
     }
 
     /*
-     * Ask for passphrase if no RSA key is provided
+     * Ask for passphrase if no RSA key is provided. Without a display, e.g. on cluster nodes, 
+     * the passphrase is taken from an environment variable, or asked on the console
      */
-    private String promptPassphrase(String message){
+    private String promptPassphrase(String message, String variable){
+        if (GraphicsEnvironment.isHeadless()) {
+            String passphrase = System.getenv(variable);
+            if (passphrase == null && System.console() != null) {
+                char[] typed = System.console().readPassword("%s: ", message);
+                if (typed != null) passphrase = new String(typed);
+            }
+            if (passphrase == null) IJ.log(message+" not set. Set "+variable+" or use a key without passphrase");
+            return passphrase;
+        }
+
         JTextField passphraseField=(JTextField)new JPasswordField(20);
         String passphrase = null;
 
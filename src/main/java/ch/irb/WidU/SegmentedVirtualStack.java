@@ -0,0 +1,130 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Virtual stack of a segmented image, backed by the segmented tiles of a blob.
+ * 
+ * A slice is assembled and downscaled only when it is displayed, and the most recently used slices
+ * are kept in a small cache. Memory usage is proportional to the number of slices viewed, not to the
+ * size of the image. The blob must not be closed while the stack is in use.
+ * 
+ * @author Diego Morone
+ */
+public class SegmentedVirtualStack extends VirtualStack {
+
+    private final Blob blob;
+    private final int size;
+    private final LinkedHashMap<Integer, ImageProcessor> cache;
+
+    /**
+     * Initialize a new virtual stack
+     * 
+     * @param blob      blob with segmented tiles
+     * @param width     width of the source image
+     * @param height    height of the source image
+     * @param size      number of slices
+     * @param cachesize maximum number of slices kept in memory
+     */
+    public SegmentedVirtualStack(Blob blob, int width, int height, int size, int cachesize) {
+        super(width, height, null, null);
+        this.blob = blob;
+        this.size = size;
+        final int maxentries = Math.max(1, cachesize);
+        this.cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) { // access order, for LRU
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+                return size() > maxentries;
+            }
+        };
+    }
+
+    /**
+     * Returns the segmented slice n, assembling it if not in cache
+     * 
+     * @param n slice, from 1 to getSize()
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        if (n < 1 || n > size) throw new IllegalArgumentException("Argument out of range: " + n);
+
+        ImageProcessor ip;
+        synchronized (cache) {
+            ip = cache.get(n);
+        }
+        if (ip == null) {
+            ip = blob.assembleSlice(n - 1);
+            synchronized (cache) {
+                cache.put(n, ip);
+            }
+        }
+        return ip.duplicate(); // cached slice must not be modified by the viewer
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return 8;
+    }
+}
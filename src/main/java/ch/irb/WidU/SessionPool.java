@@ -0,0 +1,346 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.*;
+
+/**
+ * Process-wide pool of SSH sessions, shared by all plugin runs.
+ * 
+ * Sessions are kept open with keepalive messages for some minutes after their last use (see Wid-U settings),
+ * so that repeated runs skip the SSH handshake and the password prompts. Idle SFTP channels of each session 
+ * are reused as well. Sessions are checked before being reused, and replaced if broken.
+ * 
+ * @author Diego Morone
+ */
+public class SessionPool {
+
+    private static final int KEEPALIVE = 30000; // ms between keepalive messages
+    private static final int KEEPALIVEMAX = 3; // missed keepalive replies before disconnecting
+
+    private static final Map<String, PooledSession> sessions = new HashMap<String, PooledSession>();
+    private static final Map<String, KeyLock> creating = new HashMap<String, KeyLock>(); // one lock per server, see acquire
+    // Sessions still in use when closeAll was called, disconnected at their last release
+    private static final List<PooledSession> retired = new ArrayList<PooledSession>();
+    private static ScheduledExecutorService evictor;
+
+    /**
+     * Creates new sessions for the pool
+     */
+    public interface SessionFactory {
+        Session create() throws JSchException;
+    }
+
+    /*
+     * Lock of the runs creating or waiting for a new session to a server. Removed when the last one leaves
+     */
+    private static class KeyLock {
+        int waiters = 0;
+    }
+
+    /*
+     * Session with its idle SFTP channels and usage
+     */
+    private static class PooledSession {
+        final String key;
+        final Session session;
+        final ArrayDeque<ChannelSftp> idle = new ArrayDeque<ChannelSftp>();
+        int users = 0;
+        long lastused = System.currentTimeMillis();
+
+        PooledSession(String key, Session session) {
+            this.key = key;
+            this.session = session;
+        }
+    }
+
+    /**
+     * Get a connected session for a server, reusing a pooled one if still alive.
+     * Each acquire must be followed by a release
+     * 
+     * @param hostname  URL or IP
+     * @param port      SSH port
+     * @param username  SSH username
+     * @param factory   creates a new connected session if none is available
+     * @return connected session
+     * @throws JSchException if a new session cannot be created
+     */
+    public static Session acquire(String hostname, Integer port, String username, SessionFactory factory) throws JSchException {
+        String key = username + "@" + hostname + ":" + port;
+
+        KeyLock keylock;
+        synchronized (SessionPool.class) {
+            Session session = reuse(key, hostname);
+            if (session != null) return session;
+            keylock = creating.computeIfAbsent(key, k -> new KeyLock());
+            keylock.waiters++;
+        }
+
+        // New sessions are created outside the pool lock, since the factory may wait for a password:
+        // other servers and releases go on meanwhile. Runs on the same server wait, and reuse the new session
+        try {
+            synchronized (keylock) {
+                synchronized (SessionPool.class) {
+                    Session session = reuse(key, hostname);
+                    if (session != null) return session;
+                }
+
+                Session session = factory.create();
+                session.setServerAliveInterval(KEEPALIVE);
+                session.setServerAliveCountMax(KEEPALIVEMAX);
+
+                synchronized (SessionPool.class) {
+                    PooledSession pooled = new PooledSession(key, session);
+                    sessions.put(key, pooled);
+                    pooled.users++;
+                    return session;
+                }
+            }
+        } finally {
+            synchronized (SessionPool.class) {
+                if (--keylock.waiters == 0) creating.remove(key);
+            }
+        }
+    }
+
+    /*
+     * Take a pooled session if still alive, or remove it if broken. Called with the pool lock
+     * 
+     * @return connected session, or null if a new one must be created
+     */
+    private static Session reuse(String key, String hostname) {
+        PooledSession pooled = sessions.get(key);
+        if (pooled == null) return null;
+
+        if (!isAlive(pooled.session)) {
+            IJ.log("SSH connection to "+hostname+" lost, reconnecting");
+            close(pooled);
+            sessions.remove(key);
+            return null;
+        }
+
+        IJ.log("Reusing SSH connection to "+hostname);
+        pooled.users++;
+        pooled.lastused = System.currentTimeMillis();
+        return pooled.session;
+    }
+
+    /**
+     * Give back a session. It stays open for the keepalive time of the Wid-U settings,
+     * or is disconnected immediately if this time is 0 or if closeAll was called while in use
+     * 
+     * @param session   session from acquire
+     */
+    public static synchronized void release(Session session) {
+        PooledSession pooled = find(session);
+        if (pooled == null) {
+            if (session != null) session.disconnect();
+            return;
+        }
+
+        pooled.users = Math.max(0, pooled.users - 1);
+        pooled.lastused = System.currentTimeMillis();
+
+        if (pooled.users == 0 && (retired.contains(pooled) || getKeepAlive() <= 0)) {
+            close(pooled);
+            sessions.remove(pooled.key, pooled);
+            retired.remove(pooled);
+        } else {
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Remove a broken session from the pool and disconnect it, e.g. after a connection error.
+     * Unlike release, the next acquire always creates a new session, even if the broken one
+     * still looks connected (JSch notices a dead link only after the missed keepalive replies)
+     * 
+     * @param session   session from acquire
+     */
+    public static synchronized void invalidate(Session session) {
+        PooledSession pooled = find(session);
+        if (pooled != null) {
+            sessions.remove(pooled.key, pooled);
+            retired.remove(pooled);
+            close(pooled);
+        } else if (session != null) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Get a connected SFTP channel, reusing an idle one of the session if available
+     * 
+     * @param session   pooled session
+     * @return connected SFTP channel
+     * @throws JSchException if a new channel cannot be opened
+     */
+    public static ChannelSftp openSftp(Session session) throws JSchException {
+        synchronized (SessionPool.class) {
+            PooledSession pooled = find(session);
+            while (pooled != null && !pooled.idle.isEmpty()) {
+                ChannelSftp channelSftp = pooled.idle.pop();
+                if (channelSftp.isConnected() && !channelSftp.isClosed()) return channelSftp;
+            }
+        }
+
+        ChannelSftp channelSftp = (ChannelSftp) session.openChannel("sftp");
+        channelSftp.connect();
+        return channelSftp;
+    }
+
+    /**
+     * Give back an SFTP channel from openSftp. Channels still connected are kept for reuse
+     * 
+     * @param session       pooled session
+     * @param channelSftp   channel to give back, can be null
+     */
+    public static synchronized void closeSftp(Session session, ChannelSftp channelSftp) {
+        if (channelSftp == null) return;
+
+        PooledSession pooled = find(session);
+        if (pooled != null && channelSftp.isConnected() && !channelSftp.isClosed()) {
+            pooled.idle.push(channelSftp);
+        } else {
+            channelSftp.exit();
+            channelSftp.disconnect();
+        }
+    }
+
+    /**
+     * Disconnect all sessions, e.g. when settings change. Sessions in use by a run are no longer reused,
+     * and are disconnected when the run releases them
+     */
+    public static synchronized void closeAll() {
+        for (PooledSession pooled : sessions.values()) {
+            if (pooled.users > 0) {
+                retired.add(pooled);
+            } else {
+                close(pooled);
+            }
+        }
+        sessions.clear();
+    }
+
+    /*
+     * Keepalive time from settings, in minutes
+     */
+    private static int getKeepAlive() {
+        try {
+            return Integer.parseInt(Prefs.get("ch.irb.widu.keepalive", "10"));
+        } catch (NumberFormatException e) {
+            return 10;
+        }
+    }
+
+    /*
+     * Health check: the session must be connected and able to send a message
+     */
+    private static boolean isAlive(Session session) {
+        if (!session.isConnected()) return false;
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static PooledSession find(Session session) {
+        for (PooledSession pooled : sessions.values()) {
+            if (pooled.session == session) return pooled;
+        }
+        for (PooledSession pooled : retired) {
+            if (pooled.session == session) return pooled;
+        }
+        return null;
+    }
+
+    private static void close(PooledSession pooled) {
+        for (ChannelSftp channelSftp : pooled.idle) {
+            channelSftp.exit();
+            channelSftp.disconnect();
+        }
+        pooled.idle.clear();
+        pooled.session.disconnect();
+    }
+
+    /*
+     * Disconnect sessions unused for longer than the keepalive time, checking every minute
+     */
+    private static void scheduleEviction() {
+        if (evictor != null) return;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Wid-U SSH pool");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(() -> {
+            synchronized (SessionPool.class) {
+                long now = System.currentTimeMillis();
+                Iterator<PooledSession> it = sessions.values().iterator();
+                while (it.hasNext()) {
+                    PooledSession pooled = it.next();
+                    if (pooled.users == 0 && now - pooled.lastused > getKeepAlive() * 60000L) {
+                        close(pooled);
+                        it.remove();
+                        IJ.log("SSH connection terminated");
+                    }
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,298 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Segmentation on a server sharing a folder with this computer, e.g. a cluster filesystem mounted on both.
+ * 
+ * Tiles are written to the shared folder with local file I/O instead of SFTP, and the job is queued 
+ * by connecting directly to server.py, as client.py --wait does. Results are read back from the same folder.
+ * The shared folder can be mounted at a different path on the server.
+ * 
+ * @author Diego Morone
+ */
+public class SharedFolderBackend implements Backend {
+
+    private final File folder;
+    private final String serverfolder;
+    private final String hostname;
+    private final int port;
+    private final boolean packed;
+    private final int threads;
+    private final JobListener listener = new JobListener.Status(); // queue position and progress, shown in the status bar
+
+    // Open connections to server.py of submitted jobs, by blob UUID
+    private final Map<String, Socket> sockets = new ConcurrentHashMap<String, Socket>();
+    private final Map<String, BufferedReader> eventstreams = new ConcurrentHashMap<String, BufferedReader>();
+
+    // Queue wait of submitted jobs, by blob UUID, see RunReport.java
+    private final Map<String, RunReport.Span> queued = new ConcurrentHashMap<String, RunReport.Span>();
+
+    /**
+     * Initialize a new backend
+     * 
+     * @param folder        shared folder, as mounted on this computer
+     * @param serverfolder  same folder, as mounted on the server. Empty if the same path
+     * @param hostname      host of server.py
+     * @param port          port of server.py, usually 65432
+     * @param packed        true to write tiles and read results as a single zip file, see TilePack.java
+     */
+    public SharedFolderBackend(String folder, String serverfolder, String hostname, int port, boolean packed) {
+        this.folder = new File(folder);
+        this.serverfolder = (serverfolder == null || serverfolder.isEmpty() ? folder : serverfolder).replace(System.getProperty("file.separator"), "/");
+        this.hostname = hostname;
+        this.port = port;
+        this.packed = packed;
+        this.threads = Parallel.getThreads();
+    }
+
+    @Override
+    public void submit(Blob blob) {
+        Path blobfolder = folder.toPath().resolve(blob.getID());
+        Socket socket = null;
+
+        try {
+            Files.createDirectories(blobfolder);
+            writeTiles(blob, blobfolder);
+
+            // Queue the job and keep the connection for its events
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(hostname, port), 10000);
+            String message = "WAIT " + serverfolder + "/" + blob.getID() + "/";
+            OutputStream out = socket.getOutputStream();
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            IJ.log("Add process to job queue: " + message);
+
+            BufferedReader events = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            sockets.put(blob.getID(), socket);
+            eventstreams.put(blob.getID(), events);
+            queued.put(blob.getID(), RunReport.begin(RunReport.Phase.QUEUE));
+        } catch (IOException e) {
+            IJ.error("Wid-U", "Cannot submit job to " + hostname + ":" + port + ". Error: " + e.getMessage());
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ce) {
+                    // already closed
+                }
+            }
+            delete(blobfolder);
+        }
+    }
+
+    @Override
+    public boolean collect(Blob blob) {
+        Socket socket = sockets.remove(blob.getID());
+        BufferedReader events = eventstreams.remove(blob.getID());
+        RunReport.Span span = queued.remove(blob.getID());
+        if (socket == null) return false;
+
+        Path blobfolder = folder.toPath().resolve(blob.getID());
+        boolean ok = false;
+
+        try {
+            String line;
+            while ((line = events.readLine()) != null) {
+                if (span.getPhase() == RunReport.Phase.QUEUE && (line.startsWith("RUNNING") || line.startsWith("PROGRESS"))) {
+                    span.end();
+                    span = RunReport.begin(RunReport.Phase.INFERENCE);
+                }
+                if (line.startsWith("DONE")) {
+                    span.end(blob.getRawTiles().size(), 0);
+                    listener.done(blob);
+                    ok = true;
+                    break;
+                } else if (line.startsWith("FAILED")) {
+                    IJ.error("Wid-U", "Command run failed. Server says: " + line);
+                    break;
+                }
+                JobListener.dispatch(listener, blob, line);
+            }
+            if (line == null) {
+                IJ.log("Server events interrupted, checking for results");
+                ok = Files.exists(blobfolder.resolve("done.txt"));
+            }
+
+            if (ok) {
+                IJ.log("Segmentation OK");
+                readResults(blob, blobfolder.resolve("results"));
+            }
+        } catch (IOException e) {
+            IJ.error("Wid-U", "Cannot read results. Error: " + e.getMessage());
+            ok = false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            delete(blobfolder);
+        }
+
+        return ok;
+    }
+
+    /*
+     * Write raw tiles to the blob folder. Each tile is written in parallel with a single channel write
+     */
+    private void writeTiles(Blob blob, Path blobfolder) throws IOException {
+        TileStore blobtiles = blob.getRawTiles();
+        RunReport.Span span = RunReport.begin(RunReport.Phase.UPLOAD);
+        long start = System.nanoTime();
+        long bytes;
+
+        if (packed) {
+            bytes = TilePack.write(blob, Files.newOutputStream(blobfolder.resolve(TilePack.RAWPACK)));
+        } else {
+            int[] indices = blobtiles.indices();
+            AtomicLong written = new AtomicLong();
+            AtomicReference<IOException> error = new AtomicReference<IOException>();
+            Parallel.forEach(threads, indices.length, i -> {
+                Path path = blobfolder.resolve(blob.getTileName(indices[i]));
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(blobtiles.get(indices[i]));
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    written.addAndGet(buffer.capacity());
+                } catch (IOException e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            if (error.get() != null) throw error.get();
+            bytes = written.get();
+        }
+        span.end(blobtiles.size(), bytes);
+
+        // Images of a multi-image job, see MultiBlob.java
+        if (blob.getManifest() != null) {
+            Files.write(blobfolder.resolve(MultiBlob.MANIFEST), blob.getManifest().getBytes(StandardCharsets.UTF_8));
+        }
+
+        IJ.log(String.format("Wrote %d tiles in %.1f s", blobtiles.size(), (System.nanoTime() - start) / 1e9));
+    }
+
+    /*
+     * Read segmented tiles from the results folder
+     */
+    private void readResults(Blob blob, Path resultfolder) throws IOException {
+        RunReport.Span span = RunReport.begin(RunReport.Phase.DOWNLOAD);
+        long start = System.nanoTime();
+        int[] indices = blob.getRawTiles().indices();
+        long bytes;
+
+        if (packed) {
+            Path pack = resultfolder.resolve(TilePack.RESULTPACK);
+            bytes = Files.size(pack);
+            TilePack.readSegmented(Files.newInputStream(pack), blob);
+        } else {
+            AtomicLong read = new AtomicLong();
+            AtomicReference<IOException> error = new AtomicReference<IOException>();
+            Parallel.forEach(threads, indices.length, i -> {
+                try {
+                    byte[] data = Files.readAllBytes(resultfolder.resolve(blob.getTileName(indices[i])));
+                    blob.addSegmentedTile(data, indices[i]);
+                    read.addAndGet(data.length);
+                } catch (IOException e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            if (error.get() != null) throw error.get();
+            bytes = read.get();
+        }
+        span.end(indices.length, bytes);
+
+        IJ.log(String.format("Read %d tiles in %.1f s", indices.length, (System.nanoTime() - start) / 1e9));
+    }
+
+    /*
+     * Delete the blob folder and all its contents
+     */
+    private static void delete(Path path) {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            IJ.log("Cannot delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getModel() {
+        return "shared:" + hostname + ":" + port;
+    }
+
+    @Override
+    public void close() {
+        for (Socket socket : sockets.values()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        sockets.clear();
+        eventstreams.clear();
+    }
+}
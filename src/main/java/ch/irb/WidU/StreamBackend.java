@@ -0,0 +1,277 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Segmentation on a remote service that receives tiles on a socket, see TileStream.java.
+ * 
+ * The socket goes through a local port forward of the SSH connection, so that the service only listens on
+ * the server itself, and nothing is written to the server disk. Each blob is streamed on its own connection:
+ * tiles are sent by one thread and results read by another as soon as the service sends them. 
+ * At most "tiles in flight" tiles are sent and not yet segmented, so that the service never buffers more than that.
+ * When either thread fails, the connection is closed so that the other one and the service stop too, 
+ * and a service silent for 5 minutes fails the stream.
+ * <p>
+ * The service is started with JobServer --stream, see server/StreamServer.java.
+ * 
+ * @author Diego Morone
+ */
+public class StreamBackend implements Backend {
+
+    private final String hostname;
+    private final Integer port;
+    private final String username;
+    private final String cachefolder;
+    private final int streamport;
+    private final int window;
+
+    private static final int READTIMEOUT = 5 * 60 * 1000; // ms without any frame from the service before giving up
+
+    private SSHConnection ssh = null;
+    private int localport = -1;
+
+    // Blobs being streamed, by blob UUID
+    private final Map<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+
+    /*
+     * Connection of a blob, with its sender and receiver threads
+     */
+    private static class Stream {
+        Socket socket;
+        Thread sender;
+        Thread receiver;
+        final AtomicReference<String> error = new AtomicReference<String>();
+        volatile boolean ended = false;
+        int sent;
+        volatile int received;
+    }
+
+    /**
+     * Initialize a new backend. Does not connect yet
+     * 
+     * @param hostname      URL or IP to connect to
+     * @param port          SSH port
+     * @param username      SSH username
+     * @param cachefolder   remote folder, only used by the SSH connection
+     * @param streamport    port of the tile stream service on the server
+     * @param window        maximum number of tiles sent and not yet segmented
+     */
+    public StreamBackend(String hostname, Integer port, String username, String cachefolder, int streamport, int window) {
+        this.hostname = hostname;
+        this.port = port;
+        this.username = username;
+        this.cachefolder = cachefolder;
+        this.streamport = streamport;
+        this.window = Math.max(1, window);
+    }
+
+    /*
+     * Open connection and port forward, or the ones opened before
+     * 
+     * @return local port forwarded to the service
+     */
+    private synchronized int getLocalPort() {
+        if (ssh == null) {
+            ssh = new SSHConnection(hostname, port, username, cachefolder);
+            localport = ssh.forward(streamport);
+        }
+        return localport;
+    }
+
+    @Override
+    public void submit(Blob blob) {
+        Stream stream = new Stream();
+        streams.put(blob.getID(), stream);
+
+        try {
+            int local = getLocalPort();
+            if (local < 0) throw new IOException("no port forward to " + hostname + ":" + streamport);
+
+            stream.socket = new Socket();
+            stream.socket.connect(new InetSocketAddress("localhost", local), 10000);
+            stream.socket.setTcpNoDelay(true);
+            stream.socket.setSoTimeout(READTIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream.socket.getOutputStream(), 1 << 16));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream.socket.getInputStream(), 1 << 16));
+
+            TileStream.writeHello(out);
+            out.flush();
+            TileStream.readHello(in);
+
+            TileStore tiles = blob.getRawTiles();
+            int[] indices = tiles.indices();
+            stream.sent = indices.length;
+            Semaphore inflight = new Semaphore(window);
+            IJ.log("Streaming " + indices.length + " tiles to " + hostname + ":" + streamport);
+
+            // Tiles are segmented while others are sent and received, so upload and download include inference time
+            stream.sender = new Thread(() -> {
+                RunReport.Span span = RunReport.begin(RunReport.Phase.UPLOAD);
+                long bytes = 0;
+                try {
+                    for (int index : indices) {
+                        // Wait for results before sending more than the window
+                        if (!inflight.tryAcquire()) {
+                            out.flush();
+                            inflight.acquire();
+                        }
+                        if (stream.error.get() != null) return;
+                        byte[] tile = tiles.get(index);
+                        TileStream.writeTile(out, index, tile);
+                        bytes += tile.length;
+                    }
+                    TileStream.writeEnd(out);
+                    span.end(indices.length, bytes);
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    stream.error.compareAndSet(null, "Send failed: " + e.getMessage());
+                    // The service would wait for the end frame, and the receiver for its results
+                    close(stream);
+                }
+            }, "Wid-U stream send");
+
+            stream.receiver = new Thread(() -> {
+                RunReport.Span span = RunReport.begin(RunReport.Phase.DOWNLOAD);
+                long start = System.nanoTime();
+                int count = 0;
+                long bytes = 0;
+                try {
+                    TileStream.Frame frame;
+                    while ((frame = TileStream.read(in)).index != TileStream.END) {
+                        if (frame.index == TileStream.ERROR) {
+                            stream.error.compareAndSet(null, "Server says: " + frame.getMessage());
+                            return;
+                        }
+                        if (frame.index < 0 || frame.index >= blob.getTileCount()) {
+                            stream.error.compareAndSet(null, "Invalid tile index " + frame.index + " from server");
+                            return;
+                        }
+                        blob.addSegmentedTile(frame.data, frame.index);
+                        inflight.release();
+                        count++;
+                        bytes += frame.data.length;
+                    }
+                    stream.received = count;
+                    stream.ended = true;
+                    span.end(count, bytes);
+                    IJ.log(String.format("Received %d tiles in %.1f s", count, (System.nanoTime() - start) / 1e9));
+                } catch (IOException | RuntimeException e) {
+                    stream.error.compareAndSet(null, "Receive failed: " + e.getMessage());
+                } finally {
+                    if (!stream.ended) close(stream);
+                    // Unblock the sender if the stream ended early
+                    inflight.release(indices.length);
+                }
+            }, "Wid-U stream receive");
+
+            stream.sender.start();
+            stream.receiver.start();
+        } catch (IOException e) {
+            stream.error.compareAndSet(null, "Cannot open tile stream. Error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean collect(Blob blob) {
+        Stream stream = streams.remove(blob.getID());
+        if (stream == null) return false;
+
+        try {
+            if (stream.sender != null) stream.sender.join();
+            if (stream.receiver != null) stream.receiver.join();
+        } catch (InterruptedException e) {
+            stream.error.compareAndSet(null, "Interrupted");
+        } finally {
+            close(stream);
+        }
+
+        if (stream.error.get() != null || !stream.ended) {
+            IJ.error("Wid-U", "Tile stream failed. " + (stream.error.get() != null ? stream.error.get() : "Connection closed"));
+            return false;
+        }
+        if (stream.received < stream.sent) {
+            IJ.error("Wid-U", "Tile stream failed. Received " + stream.received + " of " + stream.sent + " tiles");
+            return false;
+        }
+        IJ.log("Segmentation OK");
+        return true;
+    }
+
+    private static void close(Stream stream) {
+        if (stream.socket == null) return;
+        try {
+            stream.socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    @Override
+    public String getModel() {
+        return username + "@" + hostname + ":" + port + " stream:" + streamport;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Stream stream : streams.values()) close(stream);
+        streams.clear();
+        if (ssh != null) {
+            if (localport > 0) ssh.unforward(localport);
+            ssh.disconnect();
+        }
+        ssh = null;
+        localport = -1;
+    }
+}
@@ -0,0 +1,191 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming implementation of the Wid-U workflow.
+ * 
+ * The image is split in windows of frames, and each window is processed as a separate blob.
+ * Tiling, upload, segmentation and reassembly run in separate stages connected by bounded queues,
+ * so that while a window is being segmented (see Backend.java) the next one is already tiled and uploaded.
+ * At most queuesize blobs wait between two stages, which keeps memory usage independent of the number of frames.
+ * The stages are shared with the batch mode, see PipelineStages.java.
+ * 
+ * @author Diego Morone
+ */
+public class StreamingPipeline {
+
+    private final ImagePlus raw;
+    private final Backend backend;
+    private final int window;
+    private final int queuesize;
+
+    private boolean progressive = false;
+    private ResultCache cache = null;
+
+    /**
+     * Initialize a new pipeline
+     * 
+     * @param raw       source image
+     * @param backend   where tiles are segmented, e.g. a server
+     * @param window    number of frames per window
+     * @param queuesize maximum number of blobs waiting between two stages
+     */
+    public StreamingPipeline(ImagePlus raw, Backend backend, int window, int queuesize) {
+        this.raw = raw;
+        this.backend = backend;
+        this.window = Math.max(1, window);
+        this.queuesize = queuesize;
+    }
+
+    /**
+     * Show the result as soon as the pipeline starts, and fill in frames as their window is reassembled.
+     * Windows start with a single frame and double up to the window size, so that the first frames
+     * come back from the server as soon as possible.
+     * 
+     * @param progressive   true to show the result while processing
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * Take tiles segmented before from a local cache, and add new results to it.
+     * Windows found entirely in the cache are not sent to the server
+     * 
+     * @param cache     result cache, or null to segment all tiles
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Runs all stages and waits for the last window to be reassembled
+     * 
+     * @return  ImagePlus of the segmented image, with same dimensions and calibration as input image.
+     *          null if any of the stages failed. In progressive mode, the image is already shown
+     */
+    public ImagePlus run() {
+
+        int nFrames = raw.getNFrames();
+        int nSlices = raw.getNSlices();
+
+        // First frame of each window, plus one after the last frame
+        List<Integer> windows = new ArrayList<Integer>();
+        int size = progressive ? 1 : window;
+        for (int first = 1; first <= nFrames; first = first + size, size = Math.min(2*size, window)) {
+            windows.add(first);
+        }
+        windows.add(nFrames + 1);
+        int nWindows = windows.size() - 1;
+
+        IJ.log("Streaming "+nFrames+" frames in "+nWindows+" windows of up to "+window+" frames");
+
+        // Reassembly runs in the calling thread, window after window
+        ImageStack outstk = new ImageStack(raw.getWidth(), raw.getHeight(), nSlices * nFrames);
+        ImagePlus out = null;
+        if (progressive) {
+            // Empty result, filled in place as windows are reassembled
+            for (int n = 1; n <= outstk.getSize(); n++) {
+                outstk.setPixels(new byte[raw.getWidth()*raw.getHeight()], n);
+            }
+            out = createResult(outstk);
+            out.show();
+        }
+        ImagePlus shown = out;
+        int[] done = { 0 };
+
+        PipelineStages stages = new PipelineStages("Streaming", backend, queuesize) {
+            @Override
+            protected void tile() throws Exception {
+                for (int w = 0; w < nWindows && !failed(); w++) {
+                    Blob blob = new Blob();
+                    blob.populateBlob(raw, windows.get(w), windows.get(w + 1) - 1);
+                    if (cache != null) cache.lookup(blob);
+                    if (!tiled(blob)) break;
+                }
+            }
+
+            @Override
+            protected void collected(Blob blob, boolean ok) throws Exception {
+                if (!ok) throw new IOException("segmented tiles not received");
+                // Windows with all tiles from the cache were not sent
+                if (cache != null && blob.getRawTiles().size() > 0) cache.store(blob);
+                segmented(blob);
+            }
+
+            @Override
+            protected void reassemble(Blob blob) {
+                blob.tileSegmentation(outstk);
+                if (shown != null) shown.updateAndDraw();
+                done[0]++;
+                IJ.showProgress(done[0], nWindows);
+                IJ.log("Window "+done[0]+"/"+nWindows+" done");
+            }
+        };
+
+        if (!stages.run() || done[0] < nWindows) return null;
+
+        return out != null ? out : createResult(outstk);
+    }
+
+    /*
+     * Wraps the reassembled stack in an hyperstack with the same dimensions and calibration as the source image
+     */
+    private ImagePlus createResult(ImageStack outstk) {
+        ImagePlus out = new ImagePlus("WIDU_"+raw.getTitle(), outstk);
+        if (raw.getNSlices() * raw.getNFrames() > 1) {
+            out.setDimensions(1, raw.getNSlices(), raw.getNFrames());
+            out.setOpenAsHyperStack(true);
+        }
+        out.setCalibration(raw.getCalibration());
+        return out;
+    }
+}
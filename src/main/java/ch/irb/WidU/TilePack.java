@@ -0,0 +1,140 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packed container for the tiles of a blob.
+ * 
+ * All tiles are stored in a single zip file, so that a blob is transferred with a single file instead of 
+ * one file per tile. Tiles are already compressed PNG, so entries are stored without compression.
+ * The zip central directory works as index, and the server reads it with the python zipfile module (see run.py).
+ * 
+ * @author Diego Morone
+ */
+public class TilePack {
+
+    /** Name of the packed raw tiles in the blob folder */
+    public static final String RAWPACK = "tiles.zip";
+
+    /** Name of the packed segmented tiles in the results folder */
+    public static final String RESULTPACK = "results.zip";
+
+    /**
+     * Write raw tiles of a blob to a stream as a zip file, named after their unique name. The stream is closed at the end.
+     * 
+     * @param blob      blob with the raw tiles to write
+     * @param out       stream to write to
+     * @return bytes of the tiles written
+     * @throws IOException
+     */
+    public static long write(Blob blob, OutputStream out) throws IOException {
+        TileStore tiles = blob.getRawTiles();
+        long bytes = 0;
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out, 1 << 16))) {
+            zos.setMethod(ZipOutputStream.STORED);
+            CRC32 crc = new CRC32();
+            for (int index : tiles.indices()) {
+                byte[] data = tiles.get(index);
+
+                // Stored entries need size and crc before the data
+                crc.reset();
+                crc.update(data, 0, data.length);
+
+                ZipEntry ze = new ZipEntry(blob.getTileName(index));
+                ze.setSize(data.length);
+                ze.setCompressedSize(data.length);
+                ze.setCrc(crc.getValue());
+
+                zos.putNextEntry(ze);
+                zos.write(data);
+                zos.closeEntry();
+                bytes += data.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Read tiles from a zip stream and add them as segmented tiles of a blob. The stream is closed at the end.
+     * 
+     * @param in        stream to read from
+     * @param blob      blob to add the tiles to
+     * @return number of tiles read
+     * @throws IOException
+     */
+    public static int readSegmented(InputStream in, Blob blob) throws IOException {
+        int count = 0;
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(in, 1 << 16))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                if (ze.isDirectory()) continue;
+                blob.addSegmentedTile(readEntry(zis), ze.getName());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Read the current entry of a zip stream, without closing the stream
+     */
+    private static byte[] readEntry(ZipInputStream zis) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 14];
+        int len;
+        while ((len = zis.read(buf)) != -1) {
+            bos.write(buf, 0, len);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.Prefs;
+
+import java.io.File;
+
+/**
+ * Storage for the encoded tiles of a blob. Tiles are addressed by their index in the blob (see Blob.getTileIndex),
+ * from 0 to the capacity of the store. Implementations must be safe for concurrent use,
+ * since tiles are added by several threads during tiling and transfers.
+ * 
+ * @author Diego Morone
+ */
+public interface TileStore {
+
+    /**
+     * Add a tile, or replace it if a tile with the same index exists
+     * 
+     * @param index index of the tile
+     * @param data  encoded tile
+     */
+    void put(int index, byte[] data);
+
+    /**
+     * Get a tile
+     * 
+     * @param index index of the tile
+     * @return encoded tile, or null if there is no tile with this index
+     */
+    byte[] get(int index);
+
+    /**
+     * Remove a tile, if present
+     * 
+     * @param index index of the tile
+     */
+    void remove(int index);
+
+    /**
+     * @param index index of the tile
+     * @return true if the store has a tile with this index
+     */
+    boolean contains(int index);
+
+    /**
+     * @return indices of all tiles in the store, in ascending order
+     */
+    int[] indices();
+
+    /**
+     * @return number of tiles in the store
+     */
+    int size();
+
+    /**
+     * Release all tiles. The store cannot be used afterwards
+     */
+    void close();
+
+    /**
+     * Create a new empty store of the type selected in the Wid-U settings.
+     * "Disk" stores spill tiles to memory-mapped files in the local cache folder, anything else keeps them on the heap.
+     * 
+     * @param capacity  number of tiles that can be stored
+     * @return new tile store
+     */
+    static TileStore create(int capacity) {
+        String type = Prefs.get("ch.irb.widu.tilestore", "Memory");
+        if ("Disk".equals(type)) {
+            String folder = Prefs.get("ch.irb.widu.localcache", System.getProperty("java.io.tmpdir"));
+            return new MappedTileStore(new File(folder), capacity);
+        }
+        return new MemoryTileStore(capacity);
+    }
+}
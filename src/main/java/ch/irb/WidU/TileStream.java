@@ -0,0 +1,170 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol to stream tiles to a segmentation service and get results back on the same connection,
+ * without files on the server. See StreamBackend.java for the plugin side and server/StreamServer.java for the service.
+ * <p>
+ * Both sides start with a hello (magic "WIDU" and protocol version), then exchange frames:
+ * index of the tile (4 bytes, big endian), length of the data (4 bytes) and the data, a PNG tile.
+ * The plugin sends raw tiles and then an end frame; the service sends segmented tiles with the same index,
+ * in any order, and then an end frame. An error frame carries a message instead of a tile, and ends the stream.
+ * 
+ * @author Diego Morone
+ */
+public class TileStream {
+
+    public static final int MAGIC = 0x57494455; // "WIDU"
+    public static final int VERSION = 1;
+
+    /** Index of the frame ending a stream */
+    public static final int END = -1;
+
+    /** Index of a frame with an error message */
+    public static final int ERROR = -2;
+
+    // Larger frames are not tiles, e.g. a peer speaking another protocol
+    private static final int MAXLENGTH = 64 << 20;
+
+    /**
+     * Frame of a stream: tile index and data
+     */
+    public static class Frame {
+        public final int index;
+        public final byte[] data;
+
+        public Frame(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+
+        /**
+         * @return error message of an error frame
+         */
+        public String getMessage() {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Write the hello. The stream is not flushed
+     * 
+     * @param out   stream to write to
+     * @throws IOException
+     */
+    public static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Read the hello of the other side
+     * 
+     * @param in    stream to read from
+     * @throws IOException if the other side does not speak this protocol version
+     */
+    public static void readHello(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC) throw new IOException("not a Wid-U tile stream");
+        if (version != VERSION) throw new IOException("tile stream version " + version + " not supported");
+    }
+
+    /**
+     * Write a tile. The stream is not flushed
+     * 
+     * @param out   stream to write to
+     * @param index index of the tile
+     * @param data  encoded tile
+     * @throws IOException
+     */
+    public static void writeTile(DataOutputStream out, int index, byte[] data) throws IOException {
+        out.writeInt(index);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Write the end frame and flush
+     * 
+     * @param out   stream to write to
+     * @throws IOException
+     */
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        writeTile(out, END, new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * Write an error frame and flush
+     * 
+     * @param out       stream to write to
+     * @param message   error message
+     * @throws IOException
+     */
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        writeTile(out, ERROR, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Read the next frame
+     * 
+     * @param in    stream to read from
+     * @return next frame
+     * @throws IOException if the stream ends or the frame is not valid
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int index = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAXLENGTH) throw new IOException("invalid frame length " + length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new Frame(index, data);
+    }
+}
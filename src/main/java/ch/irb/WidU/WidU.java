@@ -74,12 +74,18 @@ public class WidU implements PlugIn {
         Boolean settingsok = Boolean.parseBoolean(Prefs.get("ch.irb.widu.settingsok", "false"));
         if (!settingsok) IJ.runPlugIn(WidUSettings.class.getName(), "");
 
-        // SSH variables
-        String hostname = Prefs.get("ch.irb.widu.hostname", "localhost");
-        Integer port = Integer.parseInt(Prefs.get("ch.irb.widu.port", "22"));
-        String username = Prefs.get("ch.irb.widu.username", "");
-        String cachefolder = Prefs.get("ch.irb.widu.cachefolder", "");
-        String command = Prefs.get("ch.irb.widu.command", "");
+        // Server or local segmentation, see Backend.java
+        Backend backend = Backend.create();
+
+        // Streaming variables
+        Boolean streaming = Boolean.parseBoolean(Prefs.get("ch.irb.widu.streaming", "false"));
+        Integer window = Integer.parseInt(Prefs.get("ch.irb.widu.window", "10"));
+        Integer queuesize = Integer.parseInt(Prefs.get("ch.irb.widu.queuesize", "2"));
+        Boolean progressive = Boolean.parseBoolean(Prefs.get("ch.irb.widu.progressive", "false"));
+
+        // Result variables
+        Boolean virtual = Boolean.parseBoolean(Prefs.get("ch.irb.widu.virtual", "false"));
+        Integer virtualcache = Integer.parseInt(Prefs.get("ch.irb.widu.virtualcache", "16"));
 
         // Load current image
         ImagePlus raw = IJ.getImage();
@@ -94,6 +100,16 @@ public class WidU implements PlugIn {
             }
         }
 
+        // Timings of the phases of this run, see RunReport.java
+        RunReport report = RunReport.start(raw.getTitle(), Prefs.get("ch.irb.widu.backend", Backend.SSH));
+
+        if ((streaming && raw.getNFrames() > window) || (progressive && raw.getNFrames() > 1)) {
+            runStreaming(raw, backend, window, queuesize, progressive);
+            report.finish();
+            report.publish(RunReport.getDefaultFile());
+            return;
+        }
+
         // Create blob with all tiles
         Blob blob = new Blob();
 
@@ -102,32 +118,55 @@ public class WidU implements PlugIn {
             blob.populateBlob(raw);
         } catch (Exception e) {
             IJ.error(e.getMessage());
+            blob.close();
+            backend.close();
+            report.finish();
+            return;
         }
 
-        // Establish SSH connection
-        SSHConnection ssh = new SSHConnection(hostname, port, username, cachefolder);
-        
-        // Send blob to cachefolder
-        ssh.sendBlob(blob);
+        // Tiles segmented before are taken from the local cache and not segmented again
+        ResultCache cache = ResultCache.open(backend.getModel());
+        if (cache != null) cache.lookup(blob);
+
+        boolean ok = true;
+        if (blob.getRawTiles().size() > 0) {
 
-        // Runs segmentation with Tensorflow and waits for completion
-        command  = command.replace(System.getProperty("file.separator"), "/");
-        
-        if (ssh.exec(blob, command)) { // true if execution works fine
+            // Runs segmentation and waits for completion
+            ok = backend.segment(blob); // true if execution works fine
+            if (ok && cache != null) cache.store(blob);
+        }
 
-            // Get back files
-            ssh.getremoteBlob(blob);
+        backend.close();
 
+        if (ok) {
             // Perform tiling and show segmented image
-            ImagePlus result = blob.tileSegmentation();
+            ImagePlus result = virtual ? blob.virtualSegmentation(virtualcache) : blob.tileSegmentation();
             result.show();
-
-            // Delete all files for process on server and close connection
-            ssh.deleteremoteBlob(blob);
         }
 
-        ssh.disconnect();
+        // Virtual results release the tiles when closed
+        if (!virtual || !ok) blob.close();
+
+        // Slices of virtual results are assembled later, when displayed
+        report.finish();
+        report.publish(RunReport.getDefaultFile());
+
+    }
+
+    /*
+     * Same workflow as run, but the image is processed in windows of frames
+     * which are tiled, sent, segmented and reassembled at the same time. See StreamingPipeline.java
+     */
+    private void runStreaming(ImagePlus raw, Backend backend, Integer window, Integer queuesize, Boolean progressive) {
+
+        StreamingPipeline pipeline = new StreamingPipeline(raw, backend, window, queuesize);
+        pipeline.setProgressive(progressive);
+        pipeline.setCache(ResultCache.open(backend.getModel()));
+        ImagePlus result = pipeline.run();
+
+        if (result != null && !progressive) result.show();
 
+        backend.close();
     }
 
     /**
@@ -0,0 +1,290 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.process.ImageConverter;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Batch mode of Wid-U: segments all images of an input folder and saves the results in an output folder,
+ * without opening any window.
+ * 
+ * Files go through the same stages as windows in StreamingPipeline.java, see PipelineStages.java: while a file is segmented,
+ * the next one is already opened, tiled and uploaded. Each file is a single blob, and at most queuesize
+ * jobs wait between two stages. Small files can be grouped in jobs of several images, see MultiBlob.java. Files that cannot be opened or segmented are logged and skipped.
+ * <p>
+ * Recordable, and runs headless with e.g.
+ * <pre>
+ * run("Wid-U Batch", "input=/data/screen output=/data/screen-widu extension=.tif images=1");
+ * </pre>
+ * 
+ * @author Diego Morone
+ */
+public class WidUBatch implements PlugIn {
+
+    private Backend backend;
+    private ResultCache cache;
+    private File output;
+
+    // Run report in the output folder, see RunReport.java
+    static final String REPORT = "widu-report.json";
+
+    @Override
+    public void run(String arg) {
+        String input = Prefs.get("ch.irb.widu.batchinput", "");
+        String outputpath = Prefs.get("ch.irb.widu.batchoutput", "");
+        String extension = Prefs.get("ch.irb.widu.batchextension", ".tif");
+        String images = Prefs.get("ch.irb.widu.jobimages", "1");
+
+        String options = Macro.getOptions();
+        if (GraphicsEnvironment.isHeadless()) {
+            // No dialog without a display, options are read directly
+            if (options != null) {
+                input = Macro.getValue(options, "input", input);
+                outputpath = Macro.getValue(options, "output", outputpath);
+                extension = Macro.getValue(options, "extension", extension);
+                images = Macro.getValue(options, "images", images);
+            }
+        } else {
+            GenericDialog gd = new GenericDialog("Wid-U Batch");
+            gd.addStringField("Input folder", input, 40);
+            gd.addStringField("Output folder", outputpath, 40);
+            gd.addStringField("Extension", extension, 10);
+            gd.addNumericField("Images per job", Integer.parseInt(images), 0);
+            gd.showDialog();
+            if (gd.wasCanceled()) return;
+
+            input = gd.getNextString();
+            outputpath = gd.getNextString();
+            extension = gd.getNextString();
+            images = Integer.toString(Math.max(1, (int)gd.getNextNumber()));
+            Prefs.set("ch.irb.widu.batchinput", input);
+            Prefs.set("ch.irb.widu.batchoutput", outputpath);
+            Prefs.set("ch.irb.widu.batchextension", extension);
+        }
+        Prefs.set("ch.irb.widu.jobimages", images);
+
+        segment(input, outputpath, extension);
+    }
+
+    /**
+     * Segment all files with the extension in the input folder, and save the results in the output folder.
+     * Uses the backend of the Wid-U settings. Files are sent in jobs of "images per job" files, see MultiBlob.java
+     * 
+     * @param input         input folder, or a single file
+     * @param outputpath    output folder, created if missing
+     * @param extension     extension of the files to segment, e.g. ".tif"
+     * @return number of files that could not be segmented, or -1 if the folders are not valid
+     */
+    public int segment(String input, String outputpath, String extension) {
+        File inputfile = new File(input);
+        File[] files;
+        if (inputfile.isFile()) {
+            files = new File[] { inputfile };
+        } else if (inputfile.isDirectory()) {
+            String suffix = extension.toLowerCase();
+            files = inputfile.listFiles((dir, name) -> name.toLowerCase().endsWith(suffix) && !name.startsWith("."));
+            Arrays.sort(files);
+        } else {
+            IJ.error("Wid-U", "Input folder not found: "+ input);
+            return -1;
+        }
+
+        output = new File(outputpath);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            IJ.error("Wid-U", "Cannot create output folder: "+ outputpath);
+            return -1;
+        }
+
+        if (files.length == 0) {
+            IJ.log("Wid-U Batch: no "+ extension +" files in "+ input);
+            return 0;
+        }
+
+        Integer queuesize = Integer.parseInt(Prefs.get("ch.irb.widu.queuesize", "2"));
+        Integer images = Integer.parseInt(Prefs.get("ch.irb.widu.jobimages", "1"));
+
+        backend = Backend.create();
+        cache = ResultCache.open(backend.getModel());
+
+        RunReport report = RunReport.start(input, Prefs.get("ch.irb.widu.backend", Backend.SSH));
+        long start = System.currentTimeMillis();
+        int done = process(files, queuesize, Math.max(1, images));
+        backend.close();
+        report.finish();
+        report.publish(new File(output, REPORT));
+
+        IJ.log("Wid-U Batch: "+done+"/"+files.length+" files segmented in "
+            +(System.currentTimeMillis() - start)/1000+" s, results in "+ output.getPath());
+        return files.length - done;
+    }
+
+    /*
+     * Runs opening and tiling, upload and segmentation in separate threads, 
+     * and saves the results in the calling thread. Files are tiled one by one, and grouped in jobs of 
+     * the given number of images before upload
+     * 
+     * @return number of files saved
+     */
+    private int process(File[] files, int queuesize, int images) {
+        // File names and time they were opened, by blob. Not by UUID, since resumed jobs take the UUID of the previous job
+        Map<Blob, String> names = new ConcurrentHashMap<Blob, String>();
+        Map<Blob, Long> started = new ConcurrentHashMap<Blob, Long>();
+        int[] done = { 0 };
+
+        PipelineStages stages = new PipelineStages("Batch", backend, queuesize) {
+            @Override
+            protected void tile() throws Exception {
+                List<Blob> job = new ArrayList<Blob>();
+                try {
+                    for (File file : files) {
+                        if (failed()) break;
+                        long t = System.currentTimeMillis();
+                        Blob blob = open(file);
+                        if (blob == null) continue;
+                        names.put(blob, file.getName());
+                        started.put(blob, t);
+                        job.add(blob);
+                        if (job.size() == images) {
+                            boolean queued = tiled(images == 1 ? blob : new MultiBlob(job));
+                            job.clear();
+                            if (!queued) break;
+                        }
+                    }
+                    if (!job.isEmpty()) {
+                        tiled(job.size() == 1 ? job.get(0) : new MultiBlob(job));
+                        job.clear();
+                    }
+                } finally {
+                    for (Blob blob : job) blob.close();
+                }
+            }
+
+            @Override
+            protected void collected(Blob blob, boolean ok) throws Exception {
+                List<Blob> parts = blob instanceof MultiBlob ? ((MultiBlob) blob).getParts() : Collections.singletonList(blob);
+                for (Blob part : parts) {
+                    if (ok) {
+                        if (part.getRawTiles().size() > 0 && cache != null) cache.store(part);
+                        segmented(part);
+                    } else {
+                        IJ.log("Wid-U Batch: segmentation failed for "+ names.remove(part));
+                        started.remove(part);
+                        part.close();
+                    }
+                }
+            }
+
+            @Override
+            protected void reassemble(Blob blob) {
+                String name = names.remove(blob);
+                long opened = started.remove(blob);
+                ImagePlus result = blob.tileSegmentation();
+                blob.close();
+
+                String base = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+                String path = new File(output, "WIDU_"+ base +".tif").getPath();
+                if (IJ.saveAsTiff(result, path)) {
+                    done[0]++;
+                    long t = System.currentTimeMillis() - opened;
+                    IJ.log("Wid-U Batch: "+ name +" -> "+ path +" ("+ IJ.d2s(t/1000.0, 1) +" s)");
+                } else {
+                    IJ.log("Wid-U Batch: cannot save "+ path);
+                }
+                result.flush();
+                IJ.showProgress(done[0], files.length);
+            }
+        };
+        stages.run();
+
+        return done[0];
+    }
+
+    /*
+     * Open a file and split it in tiles. Tiles found in the result cache are not segmented again
+     * 
+     * @return blob with the tiles of the file, or null if the file cannot be opened or tiled
+     */
+    private Blob open(File file) {
+        ImagePlus raw = IJ.openImage(file.getPath());
+        if (raw == null) {
+            IJ.log("Wid-U Batch: cannot open "+ file.getName());
+            return null;
+        }
+
+        if (raw.getBitDepth() == 24) {
+            if (raw.getProcessor().isGrayscale()) {
+                new ImageConverter(raw).convertToGray8();
+            } else {
+                IJ.log("Wid-U Batch: RGB color images not supported, skipping "+ file.getName());
+                return null;
+            }
+        }
+
+        Blob blob = new Blob();
+        try {
+            blob.populateBlob(raw);
+        } catch (Exception e) {
+            IJ.log("Wid-U Batch: cannot tile "+ file.getName() +", skipping. Error: "+ e.getMessage());
+            blob.close();
+            return null;
+        } finally {
+            raw.flush();
+        }
+        if (cache != null) cache.lookup(blob);
+        return blob;
+    }
+}
@@ -0,0 +1,223 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point of Wid-U, e.g. for batch jobs on cluster nodes without a display.
+ * 
+ * Segments a file or all files of a folder as Analyze > Wid-U Batch does (see WidUBatch.java). 
+ * The Wid-U settings are taken from the options instead of the ImageJ preferences, and no window or dialog is opened.
+ * Passwords are never passed as options: with the SSH backend, use a key (--key), and set WIDU_PASSPHRASE 
+ * if the key has a passphrase, or WIDU_PASSWORD for password authentication. Without these variables,
+ * they are asked on the console if there is one.
+ * <p>
+ * Usage: java -cp WidU.jar:ij.jar:jsch.jar ch.irb.WidU.WidUCli --input &lt;folder&gt; --output &lt;folder&gt; [options]
+ * <p>
+ * Exits with 0 if all files were segmented, 1 if some failed, 2 for invalid options.
+ * 
+ * @author Diego Morone
+ */
+public class WidUCli {
+
+    // Options setting a Wid-U preference: option, preference key, description
+    private static final String[][] OPTIONS = {
+        {"--host", "hostname", "server address (default localhost)"},
+        {"--port", "port", "SSH port (default 22)"},
+        {"--user", "username", "SSH username"},
+        {"--key", "rsapath", "SSH private key. Default ~/.ssh/id_rsa if it exists, otherwise password authentication"},
+        {"--cachefolder", "cachefolder", "folder for the tiles on the server"},
+        {"--command", "command", "command to queue the segmentation, e.g. /home/widu/client.py"},
+        {"--sharedfolder", "sharedfolder", "shared folder on this computer (shared backend)"},
+        {"--serverfolder", "serverfolder", "shared folder on the server, if mounted elsewhere (shared backend)"},
+        {"--queueport", "queueport", "port of the job queue (shared backend, default 65432)"},
+        {"--streamport", "streamport", "port of the tile stream service on the server (stream backend, default 65433)"},
+        {"--streamwindow", "streamwindow", "tiles sent and not yet segmented (stream backend, default 64)"},
+        {"--model", "onnxmodel", "Wid-U model exported to ONNX (local backend)"},
+        {"--batch", "batch", "tiles per inference (local backend, default 8)"},
+        {"--threads", "threads", "threads to tile and encode images (default: number of processors)"},
+        {"--channels", "channels", "concurrent SFTP transfers (default 4)"},
+        {"--compression", "compression", "SSH compression: none, fast, max or auto (default auto)"},
+        {"--queuesize", "queuesize", "jobs waiting between two steps (default 2)"},
+        {"--images", "jobimages", "images segmented in a single job (default 1)"},
+        {"--tilestore", "tilestore", "Memory or Disk (default Memory)"},
+        {"--localcache", "localcache", "local folder for Disk tiles and result cache"},
+        {"--resultcache", "resultcache", "result cache size in MB, 0 to disable (default 0)"},
+        {"--report", "report", "true to print the timings of each phase and save them in widu-report.json (default true)"},
+    };
+
+    // Options without value, setting a preference to true
+    private static final String[][] FLAGS = {
+        {"--packed", "packed", "send tiles as a single zip file"},
+        {"--events", "events", "wait for server events instead of polling (SSH backend)"},
+    };
+
+    // Backend names of the --backend option
+    private static final Map<String, String> BACKENDS = new LinkedHashMap<String, String>();
+    static {
+        BACKENDS.put("ssh", Backend.SSH);
+        BACKENDS.put("stream", Backend.STREAM);
+        BACKENDS.put("shared", Backend.SHARED);
+        BACKENDS.put("local", Backend.LOCAL);
+    }
+
+    /**
+     * Run Wid-U from the command line
+     * 
+     * @param args  see usage
+     */
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+        System.setProperty("java.awt.headless", "true");
+
+        String input = null;
+        String output = null;
+        String extension = ".tif";
+        String backend = "ssh";
+        Prefs.set("ch.irb.widu.auth", "Password");
+        Prefs.set("ch.irb.widu.keepalive", "0");
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--help") || option.equals("-h")) {
+                    usage();
+                    System.exit(0);
+                } else if (option.equals("--input")) {
+                    input = args[++i];
+                } else if (option.equals("--output")) {
+                    output = args[++i];
+                } else if (option.equals("--extension")) {
+                    extension = args[++i];
+                } else if (option.equals("--backend")) {
+                    backend = args[++i].toLowerCase();
+                } else if (!set(option, args, i)) {
+                    throw new IllegalArgumentException("unknown option " + option);
+                } else if (find(FLAGS, option) == null) {
+                    i++;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("Missing value of " + args[args.length - 1]);
+            usage();
+            System.exit(2);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+        }
+
+        if (input == null || output == null || !BACKENDS.containsKey(backend)) {
+            usage();
+            System.exit(2);
+        }
+        Prefs.set("ch.irb.widu.backend", BACKENDS.get(backend));
+
+        // Key authentication if a key is given or found
+        String key = Prefs.get("ch.irb.widu.rsapath", "");
+        File defaultkey = new File(System.getProperty("user.home"), ".ssh/id_rsa");
+        if (key.isEmpty() && defaultkey.isFile()) key = defaultkey.getPath();
+        if (!key.isEmpty()) {
+            Prefs.set("ch.irb.widu.auth", "RSA");
+            Prefs.set("ch.irb.widu.rsapath", key);
+        }
+
+        long ready = System.currentTimeMillis();
+        int failed = new WidUBatch().segment(input, output, extension);
+        long end = System.currentTimeMillis();
+
+        SessionPool.closeAll();
+
+        System.out.println("Startup: " + IJ.d2s((ready - start) / 1000.0, 2) + " s");
+        System.out.println("Segmentation: " + IJ.d2s((end - ready) / 1000.0, 2) + " s");
+        System.out.println("Total: " + IJ.d2s((end - start) / 1000.0, 2) + " s");
+
+        System.exit(failed == 0 ? 0 : (failed < 0 ? 2 : 1));
+    }
+
+    /*
+     * Set the preference of an option
+     * 
+     * @return false if the option is unknown
+     */
+    private static boolean set(String option, String[] args, int i) {
+        String[] flag = find(FLAGS, option);
+        if (flag != null) {
+            Prefs.set("ch.irb.widu." + flag[1], "true");
+            return true;
+        }
+        String[] valued = find(OPTIONS, option);
+        if (valued == null) return false;
+        Prefs.set("ch.irb.widu." + valued[1], args[i + 1]);
+        return true;
+    }
+
+    private static String[] find(String[][] options, String option) {
+        for (String[] o : options) {
+            if (o[0].equals(option)) return o;
+        }
+        return null;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java -cp WidU.jar:ij.jar:jsch.jar ch.irb.WidU.WidUCli --input <path> --output <folder> [options]");
+        System.out.println();
+        System.out.println(String.format("  %-24s %s", "--input <path>", "image, or folder of images to segment"));
+        System.out.println(String.format("  %-24s %s", "--output <folder>", "folder for the results, saved as WIDU_<name>.tif"));
+        System.out.println(String.format("  %-24s %s", "--extension <ext>", "extension of the images in the input folder (default .tif)"));
+        System.out.println(String.format("  %-24s %s", "--backend <name>", "ssh, stream, shared or local (default ssh)"));
+        for (String[] o : OPTIONS) {
+            System.out.println(String.format("  %-24s %s", o[0] + " <value>", o[2]));
+        }
+        for (String[] o : FLAGS) {
+            System.out.println(String.format("  %-24s %s", o[0], o[2]));
+        }
+        System.out.println();
+        System.out.println("Set WIDU_PASSPHRASE for keys with a passphrase, or WIDU_PASSWORD for password authentication.");
+    }
+}
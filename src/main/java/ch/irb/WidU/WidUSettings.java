@@ -63,7 +63,32 @@ public class WidUSettings implements PlugIn {
     String username ;
     String cachefolder;
     String command;
+    String backend;
+    String onnxmodel;
+    String sharedfolder;
+    String serverfolder;
+    Integer queueport;
+    Integer streamport;
+    Integer streamwindow;
+    Integer batch;
     String auth;
+    Integer keepalive;
+    Integer channels;
+    String compression;
+    Boolean streaming;
+    Integer window;
+    Integer queuesize;
+    Boolean progressive;
+    Integer threads;
+    Boolean packed;
+    Boolean events;
+    String tilestore;
+    String localcache;
+    Integer resultcache;
+    Boolean clearcache;
+    Boolean virtual;
+    Integer virtualcache;
+    Boolean report;
 
     String path = null;
 
@@ -76,7 +101,9 @@ public class WidUSettings implements PlugIn {
                 getRSAPath();
             
             // finally test connection
-            if (testconnection())
+            if (!Backend.SSH.equals(backend) && !Backend.STREAM.equals(backend))
+                IJ.log("Settings saved.");
+            else if (testconnection())
                 IJ.log("Connection test OK. Settings saved.");
 
         } else {
@@ -86,6 +113,9 @@ public class WidUSettings implements PlugIn {
     }
 
     private boolean testconnection() {
+        // Settings may have changed, do not reuse open connections
+        SessionPool.closeAll();
+
         // Open new connection. This constructor shows error if something goes wrong
         SSHConnection test = new SSHConnection(hostname, port, username, cachefolder);
         test.disconnect();
@@ -107,9 +137,40 @@ public class WidUSettings implements PlugIn {
         gd.addStringField("Cache folder", Prefs.get("ch.irb.widu.cachefolder", ""), 30);
         gd.addStringField("Command", Prefs.get("ch.irb.widu.command", ""), 30);
 
+        String[] backends = new String[]{Backend.SSH, Backend.STREAM, Backend.SHARED, Backend.LOCAL};
+        gd.addChoice("Run segmentation on", backends, Prefs.get("ch.irb.widu.backend", Backend.SSH));
+        gd.addStringField("Shared folder", Prefs.get("ch.irb.widu.sharedfolder", ""), 30);
+        gd.addStringField("Shared folder on server", Prefs.get("ch.irb.widu.serverfolder", ""), 30);
+        gd.addNumericField("Job queue port", Integer.parseInt(Prefs.get("ch.irb.widu.queueport", "65432")), 0);
+        gd.addNumericField("Tile stream port", Integer.parseInt(Prefs.get("ch.irb.widu.streamport", "65433")), 0);
+        gd.addNumericField("Tiles in flight", Integer.parseInt(Prefs.get("ch.irb.widu.streamwindow", "64")), 0);
+        gd.addStringField("ONNX model", Prefs.get("ch.irb.widu.onnxmodel", ""), 30);
+        gd.addNumericField("Tiles per batch", LocalBackend.getBatchSize(), 0);
+
 
         String[] auths = new String[]{"RSA key", "Password"};
         gd.addChoice("Authentication method", auths, Prefs.get("ch.irb.widu.auth", "Password"));
+        gd.addNumericField("Keep connection open (minutes)", Integer.parseInt(Prefs.get("ch.irb.widu.keepalive", "10")), 0);
+        gd.addNumericField("Concurrent transfers", SSHConnection.getChannels(), 0);
+        gd.addChoice("SSH compression", SSHCompression.MODES, SSHCompression.getMode());
+
+        gd.addNumericField("Threads", Parallel.getThreads(), 0);
+        String[] tilestores = new String[]{"Memory", "Disk"};
+        gd.addChoice("Keep tiles in", tilestores, Prefs.get("ch.irb.widu.tilestore", "Memory"));
+        gd.addStringField("Local cache folder", Prefs.get("ch.irb.widu.localcache", System.getProperty("java.io.tmpdir")), 30);
+        gd.addNumericField("Result cache size (MB)", Integer.parseInt(Prefs.get("ch.irb.widu.resultcache", "0")), 0);
+        gd.addCheckbox("Clear result cache", false);
+        gd.addCheckbox("Send tiles packed in a single file", Boolean.parseBoolean(Prefs.get("ch.irb.widu.packed", "false")));
+        gd.addCheckbox("Wait for server events (client.py --wait)", Boolean.parseBoolean(Prefs.get("ch.irb.widu.events", "false")));
+
+        gd.addCheckbox("Open result as virtual stack", Boolean.parseBoolean(Prefs.get("ch.irb.widu.virtual", "false")));
+        gd.addNumericField("Virtual stack cache (slices)", Integer.parseInt(Prefs.get("ch.irb.widu.virtualcache", "16")), 0);
+
+        gd.addCheckbox("Streaming (process frames in windows)", Boolean.parseBoolean(Prefs.get("ch.irb.widu.streaming", "false")));
+        gd.addNumericField("Frames per window", Integer.parseInt(Prefs.get("ch.irb.widu.window", "10")), 0);
+        gd.addNumericField("Windows in queue", Integer.parseInt(Prefs.get("ch.irb.widu.queuesize", "2")), 0);
+        gd.addCheckbox("Show result while processing", Boolean.parseBoolean(Prefs.get("ch.irb.widu.progressive", "false")));
+        gd.addCheckbox("Show run report (timings of each phase)", RunReport.isEnabled());
 
 		Font citationFont = new Font("Arial", Font.PLAIN, 10);
 		gd.addMessage("Please cite Antonello et al., 2022\ndoi: xxxxxxx", citationFont); // TODO: add doi
@@ -123,17 +184,68 @@ public class WidUSettings implements PlugIn {
         username = gd.getNextString();
         cachefolder = gd.getNextString();
         command = gd.getNextString();
+        backend = gd.getNextChoice();
+        sharedfolder = gd.getNextString();
+        serverfolder = gd.getNextString();
+        queueport = (int)gd.getNextNumber();
+        streamport = (int)gd.getNextNumber();
+        streamwindow = (int)gd.getNextNumber();
+        onnxmodel = gd.getNextString();
+        batch = (int)gd.getNextNumber();
         auth = gd.getNextChoice();
+        keepalive = (int)gd.getNextNumber();
+        channels = (int)gd.getNextNumber();
+        compression = gd.getNextChoice();
+        threads = (int)gd.getNextNumber();
+        tilestore = gd.getNextChoice();
+        localcache = gd.getNextString();
+        resultcache = (int)gd.getNextNumber();
+        clearcache = gd.getNextBoolean();
+        packed = gd.getNextBoolean();
+        events = gd.getNextBoolean();
+        virtual = gd.getNextBoolean();
+        virtualcache = (int)gd.getNextNumber();
+        streaming = gd.getNextBoolean();
+        window = (int)gd.getNextNumber();
+        queuesize = (int)gd.getNextNumber();
+        progressive = gd.getNextBoolean();
+        report = gd.getNextBoolean();
 
         Prefs.set("ch.irb.widu.hostname", hostname);
         Prefs.set("ch.irb.widu.port", Integer.toString(port));
         Prefs.set("ch.irb.widu.username", username);
         Prefs.set("ch.irb.widu.cachefolder", cachefolder);
         Prefs.set("ch.irb.widu.command", command);
+        Prefs.set("ch.irb.widu.backend", backend);
+        Prefs.set("ch.irb.widu.sharedfolder", sharedfolder);
+        Prefs.set("ch.irb.widu.serverfolder", serverfolder);
+        Prefs.set("ch.irb.widu.queueport", Integer.toString(queueport));
+        Prefs.set("ch.irb.widu.streamport", Integer.toString(streamport));
+        Prefs.set("ch.irb.widu.streamwindow", Integer.toString(streamwindow));
+        Prefs.set("ch.irb.widu.onnxmodel", onnxmodel);
+        Prefs.set("ch.irb.widu.batch", Integer.toString(batch));
         Prefs.set("ch.irb.widu.auth", auth);
+        Prefs.set("ch.irb.widu.keepalive", Integer.toString(keepalive));
+        Prefs.set("ch.irb.widu.channels", Integer.toString(channels));
+        Prefs.set("ch.irb.widu.compression", compression);
+        Prefs.set("ch.irb.widu.threads", Integer.toString(threads));
+        Prefs.set("ch.irb.widu.tilestore", tilestore);
+        Prefs.set("ch.irb.widu.localcache", localcache);
+        Prefs.set("ch.irb.widu.resultcache", Integer.toString(resultcache));
+        Prefs.set("ch.irb.widu.packed", Boolean.toString(packed));
+        Prefs.set("ch.irb.widu.events", Boolean.toString(events));
+        Prefs.set("ch.irb.widu.virtual", Boolean.toString(virtual));
+        Prefs.set("ch.irb.widu.virtualcache", Integer.toString(virtualcache));
+        Prefs.set("ch.irb.widu.streaming", Boolean.toString(streaming));
+        Prefs.set("ch.irb.widu.window", Integer.toString(window));
+        Prefs.set("ch.irb.widu.queuesize", Integer.toString(queuesize));
+        Prefs.set("ch.irb.widu.progressive", Boolean.toString(progressive));
+        Prefs.set("ch.irb.widu.report", Boolean.toString(report));
 
         Prefs.set("ch.irb.widu.settingsok", "true");
 
+        if (clearcache) ResultCache.clear();
+
         return true;
     }
 
@@ -0,0 +1,136 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.plugin.PlugIn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the jobs running and queued on the Wid-U server in the ImageJ log.
+ * 
+ * Needs a job queue answering STATUS requests: the Java job server (see server/JobServer.java) or server.py.
+ * With the SSH backend, the job queue port is forwarded over the SSH connection, 
+ * so that the port does not need to be open to the network.
+ * 
+ * @author Diego Morone
+ */
+public class WidUStatus implements PlugIn {
+
+    @Override
+    public void run(String arg) {
+        String backend = Prefs.get("ch.irb.widu.backend", Backend.SSH);
+        if (Backend.LOCAL.equals(backend)) {
+            IJ.log("Wid-U segments on the local CPU, no server to query");
+            return;
+        }
+
+        String hostname = Prefs.get("ch.irb.widu.hostname", "localhost");
+        int queueport = Integer.parseInt(Prefs.get("ch.irb.widu.queueport", "65432"));
+
+        List<String> status;
+        if (Backend.SHARED.equals(backend)) {
+            status = query(hostname, queueport);
+        } else {
+            SSHConnection ssh = new SSHConnection(hostname, 
+                Integer.parseInt(Prefs.get("ch.irb.widu.port", "22")), 
+                Prefs.get("ch.irb.widu.username", ""), 
+                Prefs.get("ch.irb.widu.cachefolder", ""));
+            int localport = ssh.forward(queueport);
+            status = localport > 0 ? query("localhost", localport) : null;
+            if (localport > 0) ssh.unforward(localport);
+            ssh.disconnect();
+        }
+
+        if (status == null) return;
+        IJ.log("Wid-U server status ("+hostname+"):");
+        for (String line : status) IJ.log("  "+line);
+    }
+
+    /**
+     * Ask the job queue for running and queued jobs
+     * 
+     * @param hostname  host of the job queue
+     * @param port      port of the job queue
+     * @return status lines, e.g. "JOB 3 RUNNING user=widu priority=0 tiles=12/48 /path/to/folder/". 
+     *         null if the job queue cannot be reached
+     */
+    public static List<String> query(String hostname, int port) {
+        try {
+            return request(hostname, port);
+        } catch (IOException e) {
+            IJ.error("Wid-U", "Cannot query job queue on "+hostname+":"+port+". Error: "+ e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Ask the job queue for running and queued jobs, without showing errors
+     */
+    static List<String> request(String hostname, int port) throws IOException {
+        List<String> status = new ArrayList<String>();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostname, port), 10000);
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write("STATUS".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                status.add(line);
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,145 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segmentation job of the job server: a folder of tiles written by the Wid-U plugin, 
+ * with the user who owns it, a priority and the connections of clients waiting for its events.
+ * 
+ * @author Diego Morone
+ */
+public class Job {
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    final long id;
+    final String folder;
+    final String user;
+    final int priority;
+    final long submitted;
+
+    volatile State state = State.QUEUED;
+    volatile int done = 0;
+    volatile int total = 0;
+
+    private final List<OutputStream> clients = new ArrayList<OutputStream>();
+
+    /**
+     * @param id        unique id, increasing with submission order
+     * @param folder    folder with the tiles
+     * @param user      owner of the job, for fair share
+     * @param priority  jobs with higher priority run first
+     * @param submitted submission time, ms
+     */
+    public Job(long id, String folder, String user, int priority, long submitted) {
+        this.id = id;
+        this.folder = folder;
+        this.user = user;
+        this.priority = priority;
+        this.submitted = submitted;
+    }
+
+    /**
+     * Send events of this job to a client, as server.py does for WAIT requests
+     * 
+     * @param client    stream of the client connection
+     */
+    public synchronized void addClient(OutputStream client) {
+        clients.add(client);
+    }
+
+    /**
+     * Send an event line to all waiting clients. Clients that left are dropped, the job goes on anyway
+     * 
+     * @param message   event, e.g. QUEUED 2, PROGRESS 10 100, DONE
+     */
+    public synchronized void notify(String message) {
+        byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        clients.removeIf(client -> {
+            try {
+                client.write(line);
+                client.flush();
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Send the queue position to all waiting clients, unless the job started meanwhile
+     * 
+     * @param position  number of queued jobs that run before this one
+     */
+    public synchronized void notifyQueued(int position) {
+        if (state == State.QUEUED) notify("QUEUED " + position);
+    }
+
+    /**
+     * Close the connections of all waiting clients
+     */
+    public synchronized void closeClients() {
+        for (OutputStream client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        clients.clear();
+    }
+
+    /**
+     * @return one line description for the status request
+     */
+    @Override
+    public String toString() {
+        return String.format("JOB %d %s user=%s priority=%d tiles=%d/%d %s", id, state, user, priority, done, total, folder);
+    }
+}
@@ -0,0 +1,265 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU.server;
+
+import ch.irb.WidU.OnnxTileModel;
+import ch.irb.WidU.TileModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Job server for Wid-U, a replacement for server.py and run.py running in a single JVM.
+ * 
+ * Accepts the same requests as server.py, so that client.py and the plugin work unchanged:
+ * - folder: queue the folder, reply "Task received"
+ * - WAIT folder: queue the folder, then send QUEUED, RUNNING, PROGRESS and DONE/FAILED events until done
+ * and in addition:
+ * - PRIORITY n [WAIT] folder: same, with priority n (default 0, higher runs first)
+ * - STATUS: one line per running job, then per queued job in the order they will run, then END
+ * <p>
+ * Jobs are segmented by a pool of workers sharing a model loaded once at startup (see Worker.java),
+ * in the order given by priorities and fair share between the owners of the folders (see Scheduler.java).
+ * Jobs are recorded in a journal, and jobs not done are queued again when the server restarts.
+ * With --stream, tiles can also be streamed on a socket with the same model, see StreamServer.java.
+ * <p>
+ * Usage: java -cp WidU.jar:ij.jar:onnxruntime.jar ch.irb.WidU.server.JobServer [options]
+ * 
+ * @author Diego Morone
+ */
+public class JobServer {
+
+    private final Scheduler scheduler = new Scheduler();
+    private final Journal journal;
+    private final AtomicLong ids = new AtomicLong();
+    private final int workers;
+
+    /**
+     * @param journal   journal of the jobs
+     * @param workers   number of workers
+     */
+    public JobServer(Journal journal, int workers) {
+        this.journal = journal;
+        this.workers = workers;
+    }
+
+    /**
+     * Queue again the jobs not done in the journal, start the workers and accept requests. Never returns
+     * 
+     * @param model     model shared by the workers
+     * @param tilesize  size of the tiles
+     * @param batchsize tiles per inference
+     * @param host      address to listen on
+     * @param port      port to listen on
+     * @throws IOException if the journal cannot be read or the port is not available
+     */
+    public void serve(TileModel model, int tilesize, int batchsize, String host, int port) throws IOException {
+        for (Job job : journal.recover()) {
+            System.out.println("Recovered " + job);
+            ids.set(Math.max(ids.get(), job.id));
+            scheduler.add(job);
+        }
+
+        for (int w = 0; w < workers; w++) {
+            Thread worker = new Thread(new Worker(scheduler, journal, model, tilesize, batchsize), "Wid-U worker " + w);
+            worker.start();
+        }
+
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(host))) {
+            System.out.println("Server listening on " + host + ":" + port + " with " + workers + " workers, model " + model.getID());
+            while (true) {
+                Socket socket = server.accept();
+                clients.execute(() -> handle(socket));
+            }
+        }
+    }
+
+    /*
+     * Serve a client request, see class description
+     */
+    private void handle(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            // Requests are short and sent at once, as by client.py
+            byte[] buf = new byte[4096];
+            int len = in.read(buf);
+            if (len <= 0) {
+                socket.close();
+                return;
+            }
+            String request = new String(buf, 0, len, StandardCharsets.UTF_8).trim();
+
+            if (request.equals("STATUS")) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("WORKERS ").append(workers).append("\n");
+                for (Job job : scheduler.snapshot()) {
+                    sb.append(job).append("\n");
+                }
+                sb.append("END\n");
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                socket.close();
+                return;
+            }
+
+            int priority = 0;
+            if (request.startsWith("PRIORITY ")) {
+                String[] parts = request.split(" ", 3);
+                priority = Integer.parseInt(parts[1]);
+                request = parts.length > 2 ? parts[2] : "";
+            }
+
+            boolean wait = request.startsWith("WAIT ");
+            String folder = wait ? request.substring("WAIT ".length()).trim() : request;
+            while (folder.length() > 1 && folder.endsWith("/")) folder = folder.substring(0, folder.length() - 1);
+
+            Job job = new Job(ids.incrementAndGet(), folder, owner(folder), priority, System.currentTimeMillis());
+            System.out.println("Received " + job);
+            journal.submitted(job);
+
+            if (wait) {
+                // Events are sent until the job is done, then the worker closes the connection
+                job.addClient(out);
+                job.notify("Task received");
+                scheduler.add(job);
+            } else {
+                scheduler.add(job);
+                out.write("Task received".getBytes(StandardCharsets.UTF_8));
+                socket.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Bad request: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException f) {
+                // already closed
+            }
+        }
+    }
+
+    /*
+     * Owner of the job folder, i.e. the user who sent the tiles, for fair share
+     */
+    private static String owner(String folder) {
+        try {
+            return Files.getOwner(new File(folder).toPath()).getName().replace(' ', '_');
+        } catch (IOException | UnsupportedOperationException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Start the job server
+     * 
+     * @param args  see usage
+     */
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 65432;
+        int workers = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batch = 8;
+        int tilesize = 224;
+        String model = null;
+        long stub = -1;
+        String journal = "widu-journal.log";
+        int stream = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--workers": workers = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--batch": batch = Integer.parseInt(args[++i]); break;
+                case "--tilesize": tilesize = Integer.parseInt(args[++i]); break;
+                case "--model": model = args[++i]; break;
+                case "--stub": stub = Long.parseLong(args[++i]); break;
+                case "--journal": journal = args[++i]; break;
+                case "--stream": stream = Integer.parseInt(args[++i]); break;
+                default:
+                    printHelp();
+                    System.exit(1);
+            }
+        }
+        if (model == null && stub < 0) {
+            printHelp();
+            System.exit(1);
+        }
+
+        TileModel tilemodel = stub >= 0 ? new StubModel(stub) : new OnnxTileModel(new File(model), threads);
+        if (stream > 0) {
+            new Thread(new StreamServer(tilemodel, tilesize, Math.max(1, batch), host, stream), "Wid-U tile stream").start();
+        }
+        new JobServer(new Journal(new File(journal)), Math.max(1, workers)).serve(tilemodel, tilesize, Math.max(1, batch), host, port);
+    }
+
+    private static void printHelp() {
+        System.out.println(String.join("\n",
+            "Usage: java -cp WidU.jar:ij.jar:onnxruntime.jar ch.irb.WidU.server.JobServer (--model <file.onnx> | --stub <ms>) [options]",
+            "",
+            "  --model <file>     Wid-U model exported to ONNX",
+            "  --stub <ms>        no model, return tiles as they are after <ms> per tile (for tests)",
+            "  --host <address>   address to listen on (default localhost)",
+            "  --port <port>      port to listen on (default 65432, as server.py)",
+            "  --workers <n>      jobs segmented at the same time (default 1)",
+            "  --threads <n>      threads of each inference (default: number of processors)",
+            "  --batch <n>        tiles per inference (default 8)",
+            "  --tilesize <px>    size of the tiles (default 224)",
+            "  --journal <file>   journal of the jobs, to resume them after a restart (default widu-journal.log)",
+            "  --stream <port>    also accept tiles streamed on this port (plugin backend \"SSH tile stream\", usually 65433)"));
+    }
+}
@@ -0,0 +1,161 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the job server, so that jobs queued or running survive a restart.
+ * 
+ * Each line is an event: SUBMIT id submitted priority user folder, START id, END id.
+ * At startup, jobs without END are queued again, and the journal is rewritten with them only.
+ * 
+ * @author Diego Morone
+ */
+public class Journal {
+
+    private final File file;
+    private FileOutputStream stream;
+    private Writer writer;
+
+    /**
+     * Open a journal, creating it if needed
+     * 
+     * @param file  journal file
+     */
+    public Journal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the jobs not ended in the journal, then rewrite the journal with them only
+     * 
+     * @return unfinished jobs, in submission order
+     * @throws IOException if the journal cannot be read or written
+     */
+    public synchronized List<Job> recover() throws IOException {
+        Map<Long, Job> pending = new LinkedHashMap<Long, Job>();
+
+        if (file.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 6);
+                    try {
+                        if (parts[0].equals("SUBMIT") && parts.length == 6) {
+                            long id = Long.parseLong(parts[1]);
+                            pending.put(id, new Job(id, parts[5], parts[4], Integer.parseInt(parts[3]), Long.parseLong(parts[2])));
+                        } else if (parts[0].equals("END") && parts.length > 1) {
+                            pending.remove(Long.parseLong(parts[1]));
+                        }
+                    } catch (NumberFormatException e) {
+                        // torn line of a crash, skip it
+                    }
+                }
+            }
+        }
+
+        // Compact: only unfinished jobs are kept
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Job job : pending.values()) {
+                w.write(submitLine(job));
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        stream = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+
+        return new ArrayList<Job>(pending.values());
+    }
+
+    /**
+     * @param job   job added to the queue
+     */
+    public void submitted(Job job) {
+        append(submitLine(job));
+    }
+
+    /**
+     * @param job   job started by a worker
+     */
+    public void started(Job job) {
+        append("START " + job.id + "\n");
+    }
+
+    /**
+     * @param job   job done or failed
+     */
+    public void ended(Job job) {
+        append("END " + job.id + " " + job.state + "\n");
+    }
+
+    private static String submitLine(Job job) {
+        return "SUBMIT " + job.id + " " + job.submitted + " " + job.priority + " " + job.user + " " + job.folder + "\n";
+    }
+
+    /*
+     * Write a line and wait for it to be on disk
+     */
+    private synchronized void append(String line) {
+        try {
+            writer.write(line);
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("Cannot write journal " + file + ": " + e.getMessage());
+        }
+    }
+}
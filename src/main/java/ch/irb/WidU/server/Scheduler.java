@@ -0,0 +1,176 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of the job server, with priorities and fair share between users.
+ * 
+ * Jobs with higher priority run first. Among jobs with the same priority, the next job is taken from the user
+ * who used the workers least: usage counts the tiles of running jobs plus the tiles of past jobs, halved every
+ * HALFLIFE. A user submitting a huge timelapse therefore does not hold back the small jobs of the others.
+ * Jobs of the same user run in submission order.
+ * 
+ * @author Diego Morone
+ */
+public class Scheduler {
+
+    private static final double HALFLIFE = 10 * 60 * 1000; // ms
+
+    private final List<Job> queued = new ArrayList<Job>();
+    private final List<Job> running = new ArrayList<Job>();
+    private final Map<String, Double> usage = new HashMap<String, Double>();
+    private long lastdecay = System.currentTimeMillis();
+
+    /**
+     * Add a job to the queue
+     * 
+     * @param job   job to run
+     */
+    public void add(Job job) {
+        List<Job> positions;
+        synchronized (this) {
+            queued.add(job);
+            notifyAll();
+            positions = sorted();
+        }
+        notifyPositions(positions);
+    }
+
+    /**
+     * Wait for a job and remove it from the queue
+     * 
+     * @return next job to run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Job take() throws InterruptedException {
+        Job next = null;
+        List<Job> positions;
+        synchronized (this) {
+            while (queued.isEmpty()) {
+                wait();
+            }
+            decay();
+
+            for (Job job : queued) {
+                if (next == null || compare(job, next) < 0) next = job;
+            }
+
+            queued.remove(next);
+            running.add(next);
+            next.state = Job.State.RUNNING;
+            positions = sorted();
+        }
+        notifyPositions(positions);
+        return next;
+    }
+
+    /**
+     * Count the tiles of a job started by a worker in the usage of its user
+     * 
+     * @param job   running job
+     * @param tiles number of tiles of the job
+     */
+    public synchronized void charge(Job job, int tiles) {
+        usage.merge(job.user, (double) tiles, Double::sum);
+    }
+
+    /**
+     * Remove a job done or failed from the running jobs
+     * 
+     * @param job   ended job
+     */
+    public synchronized void end(Job job) {
+        running.remove(job);
+    }
+
+    /**
+     * @return running jobs, then queued jobs in the order they will run
+     */
+    public synchronized List<Job> snapshot() {
+        List<Job> jobs = new ArrayList<Job>(running);
+        jobs.addAll(sorted());
+        return jobs;
+    }
+
+    /*
+     * Negative if a should run before b
+     */
+    private int compare(Job a, Job b) {
+        if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+        int share = Double.compare(usage.getOrDefault(a.user, 0.0), usage.getOrDefault(b.user, 0.0));
+        if (share != 0) return share;
+        return Long.compare(a.id, b.id);
+    }
+
+    private List<Job> sorted() {
+        List<Job> jobs = new ArrayList<Job>(queued);
+        jobs.sort(this::compare);
+        return jobs;
+    }
+
+    /*
+     * Send the queue position to all waiting clients. Called without the lock, so that a slow client
+     * does not block submissions and workers
+     */
+    private static void notifyPositions(List<Job> jobs) {
+        for (int position = 0; position < jobs.size(); position++) {
+            jobs.get(position).notifyQueued(position);
+        }
+    }
+
+    /*
+     * Halve past usage every HALFLIFE
+     */
+    private void decay() {
+        long now = System.currentTimeMillis();
+        double factor = Math.pow(0.5, (now - lastdecay) / HALFLIFE);
+        lastdecay = now;
+        usage.replaceAll((user, tiles) -> tiles * factor);
+        usage.values().removeIf(tiles -> tiles < 1);
+    }
+}
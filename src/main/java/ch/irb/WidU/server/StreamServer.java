@@ -0,0 +1,186 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU.server;
+
+import ch.irb.WidU.TileModel;
+import ch.irb.WidU.TileStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tile stream service of the job server, see TileStream.java and StreamBackend.java.
+ * 
+ * Each connection streams the tiles of a blob: a reader thread takes tiles from the socket, and the connection thread
+ * segments them in batches of up to batchsize tiles with the model shared with the workers, sending results back
+ * as soon as each batch is done. A batch starts as soon as a tile is there, without waiting for it to be full, 
+ * so that the first results come back while the next tiles are still being sent. 
+ * Nothing is written to disk, and streamed tiles do not go through the job queue.
+ * 
+ * @author Diego Morone
+ */
+public class StreamServer implements Runnable {
+
+    private final TileModel model;
+    private final int tilesize;
+    private final int batchsize;
+    private final String host;
+    private final int port;
+
+    // Marks the end of the tiles in the queue
+    private static final TileStream.Frame END = new TileStream.Frame(TileStream.END, new byte[0]);
+
+    /**
+     * @param model     warm model, shared with the workers
+     * @param tilesize  size of the tiles
+     * @param batchsize tiles per inference
+     * @param host      address to listen on
+     * @param port      port to listen on
+     */
+    public StreamServer(TileModel model, int tilesize, int batchsize, String host, int port) {
+        this.model = model;
+        this.tilesize = tilesize;
+        this.batchsize = batchsize;
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void run() {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(host))) {
+            System.out.println("Tile stream listening on " + host + ":" + port);
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Tile stream stopped: " + e.getMessage());
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    /*
+     * Segment the tiles of a connection until the end frame
+     */
+    private void serve(Socket socket) {
+        String client = socket.getRemoteSocketAddress().toString();
+        long start = System.nanoTime();
+        int count = 0;
+
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+
+            TileStream.readHello(in);
+            TileStream.writeHello(out);
+            out.flush();
+
+            // The client never has more tiles in flight than its window, the queue only decouples reading from inference
+            BlockingQueue<TileStream.Frame> queue = new ArrayBlockingQueue<TileStream.Frame>(2 * batchsize);
+            Thread reader = new Thread(() -> {
+                try {
+                    TileStream.Frame frame;
+                    while ((frame = TileStream.read(in)).index >= 0) {
+                        queue.put(frame);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed, the tiles read are still segmented
+                } finally {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "Wid-U stream reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            List<TileStream.Frame> batch = new ArrayList<TileStream.Frame>(batchsize);
+            boolean ended = false;
+            while (!ended) {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, batchsize - 1);
+                if (batch.get(batch.size() - 1) == END) {
+                    batch.remove(batch.size() - 1);
+                    ended = true;
+                }
+                if (batch.isEmpty()) continue;
+
+                List<byte[]> tiles = new ArrayList<byte[]>(batch.size());
+                for (TileStream.Frame frame : batch) tiles.add(frame.data);
+
+                try {
+                    List<byte[]> results = Worker.segment(model, tiles, tilesize);
+                    for (int i = 0; i < batch.size(); i++) {
+                        TileStream.writeTile(out, batch.get(i).index, results.get(i));
+                    }
+                    out.flush();
+                    count += batch.size();
+                } catch (Exception e) {
+                    TileStream.writeError(out, e.getMessage());
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            TileStream.writeEnd(out);
+            System.out.println(String.format("Streamed %d tiles from %s in %.1f s", count, client, (System.nanoTime() - start) / 1e9));
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Tile stream from " + client + " failed after " + count + " tiles: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.WidU.server;
+
+import ch.irb.WidU.LocalBackend;
+import ch.irb.WidU.TileModel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Long-lived worker of the job server. Takes jobs from the scheduler and segments them with a model
+ * loaded once for all jobs, with the same input and output files as run.py:
+ * tiles are the PNG files of the job folder (or tiles.zip), results go to the results folder
+ * (or results/results.zip), and done.txt is created at the end.
+ * 
+ * @author Diego Morone
+ */
+public class Worker implements Runnable {
+
+    private final Scheduler scheduler;
+    private final Journal journal;
+    private final TileModel model;
+    private final int tilesize;
+    private final int batchsize;
+
+    /**
+     * @param scheduler queue to take jobs from
+     * @param journal   journal of the server
+     * @param model     warm model, shared by all workers
+     * @param tilesize  size of the tiles
+     * @param batchsize tiles per inference
+     */
+    public Worker(Scheduler scheduler, Journal journal, TileModel model, int tilesize, int batchsize) {
+        this.scheduler = scheduler;
+        this.journal = journal;
+        this.model = model;
+        this.tilesize = tilesize;
+        this.batchsize = batchsize;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Job job;
+            try {
+                job = scheduler.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            journal.started(job);
+            job.notify("RUNNING");
+            long start = System.nanoTime();
+            try {
+                process(job);
+                job.state = Job.State.DONE;
+                job.notify("DONE");
+            } catch (Exception e) {
+                job.state = Job.State.FAILED;
+                job.notify("FAILED " + e.getMessage());
+                System.err.println("Job " + job.id + " failed: " + e.getMessage());
+            }
+            scheduler.end(job);
+            journal.ended(job);
+            job.closeClients();
+            System.out.println(String.format("%s in %.1f s", job, (System.nanoTime() - start) / 1e9));
+        }
+    }
+
+    /*
+     * Segment all tiles of a job
+     */
+    private void process(Job job) throws Exception {
+        File folder = new File(job.folder);
+        if (!folder.isDirectory()) throw new IOException("folder not found: " + job.folder);
+        File resultfolder = new File(folder, "results");
+        if (!resultfolder.isDirectory() && !resultfolder.mkdirs()) throw new IOException("cannot create " + resultfolder);
+
+        File packed = new File(folder, "tiles.zip");
+        if (packed.exists()) {
+            try (ZipFile zin = new ZipFile(packed);
+                 ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(new File(resultfolder, "results.zip")), 1 << 16))) {
+                zout.setMethod(ZipOutputStream.STORED);
+
+                List<ZipEntry> entries = new ArrayList<ZipEntry>();
+                for (Enumeration<? extends ZipEntry> e = zin.entries(); e.hasMoreElements();) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.getName().toLowerCase().endsWith(".png")) entries.add(entry);
+                }
+                start(job, entries.size());
+
+                for (int first = 0; first < entries.size(); first += batchsize) {
+                    List<ZipEntry> batch = entries.subList(first, Math.min(first + batchsize, entries.size()));
+                    List<byte[]> tiles = new ArrayList<byte[]>();
+                    for (ZipEntry entry : batch) {
+                        try (InputStream in = zin.getInputStream(entry)) {
+                            tiles.add(readAll(in));
+                        }
+                    }
+                    List<byte[]> results = segment(tiles);
+                    for (int i = 0; i < batch.size(); i++) {
+                        putStored(zout, batch.get(i).getName(), results.get(i));
+                    }
+                    progress(job, first + batch.size());
+                }
+            }
+        } else {
+            File[] files = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+            if (files == null) throw new IOException("cannot read " + folder);
+            start(job, files.length);
+
+            for (int first = 0; first < files.length; first += batchsize) {
+                int n = Math.min(batchsize, files.length - first);
+                List<byte[]> tiles = new ArrayList<byte[]>();
+                for (int i = 0; i < n; i++) {
+                    tiles.add(Files.readAllBytes(files[first + i].toPath()));
+                }
+                List<byte[]> results = segment(tiles);
+                for (int i = 0; i < n; i++) {
+                    Files.write(new File(resultfolder, files[first + i].getName()).toPath(), results.get(i));
+                }
+                progress(job, first + n);
+            }
+        }
+
+        // Results can be retrieved, as for run.py
+        new File(folder, "done.txt").createNewFile();
+    }
+
+    private List<byte[]> segment(List<byte[]> tiles) throws Exception {
+        return segment(model, tiles, tilesize);
+    }
+
+    /*
+     * Segment a batch of encoded tiles, as LocalBackend does
+     */
+    static List<byte[]> segment(TileModel model, List<byte[]> tiles, int tilesize) throws Exception {
+        float[][] inputs = new float[tiles.size()][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = LocalBackend.toInput(tiles.get(i), tilesize);
+        }
+
+        float[][] outputs = model.predict(inputs);
+
+        List<byte[]> results = new ArrayList<byte[]>();
+        for (float[] output : outputs) {
+            results.add(LocalBackend.toPNG(output, tilesize));
+        }
+        return results;
+    }
+
+    private void start(Job job, int total) {
+        job.total = total;
+        scheduler.charge(job, total);
+        job.notify("PROGRESS 0 " + total);
+    }
+
+    private void progress(Job job, int done) {
+        job.done = done;
+        job.notify("PROGRESS " + done + " " + job.total);
+    }
+
+    /*
+     * PNG are already compressed, store them as they are
+     */
+    private static void putStored(ZipOutputStream zout, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zout.putNextEntry(entry);
+        zout.write(data);
+        zout.closeEntry();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 14];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            bos.write(buf, 0, len);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,130 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tile names and indices of a blob, see Blob.getTileName and Blob.getTileIndex
+ * 
+ * @author Diego Morone
+ */
+public class BlobTest {
+
+    /**
+     * Timelapse of noise at the training pixel size: 3 x 2 tiles per frame
+     */
+    static ImagePlus createImage(int frames, long seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(500, 300);
+        for (int f = 0; f < frames; f++) {
+            byte[] pixels = new byte[500 * 300];
+            random.nextBytes(pixels);
+            stack.addSlice(new ByteProcessor(500, 300, pixels));
+        }
+        ImagePlus imp = new ImagePlus("noise", stack);
+        imp.setDimensions(1, 1, frames);
+        imp.getCalibration().pixelWidth = 0.405;
+        imp.getCalibration().pixelHeight = 0.405;
+        return imp;
+    }
+
+    @Test
+    public void testTileNames() {
+        Blob blob = new Blob();
+        blob.populateBlob(createImage(2, 1));
+
+        assertEquals(12, blob.getTileCount());
+        assertEquals(12, blob.getRawTiles().size());
+        assertEquals("0001-0000-0000.png", blob.getTileName(0));
+        assertEquals("0001-0000-0224.png", blob.getTileName(1));
+        assertEquals("0001-0224-0000.png", blob.getTileName(2));
+        assertEquals("0002-0448-0224.png", blob.getTileName(11));
+
+        Set<String> names = new HashSet<String>();
+        for (int index = 0; index < blob.getTileCount(); index++) {
+            String name = blob.getTileName(index);
+            assertTrue(names.add(name));
+            assertEquals(index, blob.getTileIndex(name));
+        }
+        blob.close();
+    }
+
+    @Test
+    public void testWindowNames() {
+        // Names keep the stack index of the source image
+        Blob blob = new Blob();
+        blob.populateBlob(createImage(4, 2), 3, 4);
+
+        assertEquals(12, blob.getTileCount());
+        assertEquals("0003-0000-0000.png", blob.getTileName(0));
+        assertEquals(0, blob.getTileIndex("0003-0000-0000.png"));
+        assertEquals(11, blob.getTileIndex("0004-0448-0224.png"));
+        assertEquals(-1, blob.getTileIndex("0001-0000-0000.png"));
+        assertEquals(-1, blob.getTileIndex("0005-0000-0000.png"));
+        blob.close();
+    }
+
+    @Test
+    public void testInvalidNames() {
+        Blob blob = new Blob();
+        blob.populateBlob(createImage(1, 3));
+
+        assertEquals(-1, blob.getTileIndex("0001-0672-0000.png"));
+        assertEquals(-1, blob.getTileIndex("0001-0000-0448.png"));
+        assertEquals(-1, blob.getTileIndex("0001-0000.png"));
+        assertEquals(-1, blob.getTileIndex("manifest.txt"));
+        assertEquals(-1, blob.getTileIndex("noextension"));
+        blob.close();
+    }
+}
@@ -0,0 +1,145 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tile indices of a multi-blob and of the views of its parts, see MultiBlob.java
+ * 
+ * @author Diego Morone
+ */
+public class MultiBlobTest {
+
+    private Blob first;
+    private Blob second;
+    private MultiBlob multi;
+
+    @Before
+    public void setUp() {
+        first = new Blob();
+        first.populateBlob(BlobTest.createImage(1, 1));
+        second = new Blob();
+        second.populateBlob(BlobTest.createImage(2, 2));
+        multi = new MultiBlob(Arrays.asList(first, second));
+    }
+
+    @After
+    public void tearDown() {
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testIndices() {
+        assertEquals(18, multi.getTileCount());
+        assertEquals(18, multi.getRawTiles().size());
+        assertEquals("0001_0001-0000-0000.png", multi.getTileName(0));
+        assertEquals("0001_0001-0448-0224.png", multi.getTileName(5));
+        assertEquals("0002_0001-0000-0000.png", multi.getTileName(6));
+        assertEquals("0002_0002-0448-0224.png", multi.getTileName(17));
+
+        for (int index = 0; index < multi.getTileCount(); index++) {
+            assertEquals(index, multi.getTileIndex(multi.getTileName(index)));
+        }
+
+        assertEquals(-1, multi.getTileIndex("0003_0001-0000-0000.png"));
+        assertEquals(-1, multi.getTileIndex("0000_0001-0000-0000.png"));
+        assertEquals(-1, multi.getTileIndex("0001_0002-0000-0000.png"));
+        assertEquals(-1, multi.getTileIndex("0001-0000-0000.png"));
+        assertEquals(-1, multi.getTileIndex("x_0001-0000-0000.png"));
+    }
+
+    @Test
+    public void testPartViews() {
+        assertArrayEquals(second.getRawTiles().get(3), multi.getRawTiles().get(9));
+        assertArrayEquals(first.getRawTiles().get(5), multi.getRawTiles().get(5));
+
+        int[] indices = multi.getRawTiles().indices();
+        assertEquals(18, indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(i, indices[i]);
+        }
+
+        // Results go to the segmented tiles of the parts
+        byte[] tile = new byte[]{1, 2, 3};
+        multi.addSegmentedTile(tile, "0002_0002-0224-0000.png");
+        assertArrayEquals(tile, second.getSegmentedTiles().get(8));
+        assertTrue(multi.getSegmentedTiles().contains(14));
+        assertFalse(multi.getSegmentedTiles().contains(8));
+        assertFalse(multi.getSegmentedTiles().contains(18));
+        assertEquals(0, first.getSegmentedTiles().size());
+
+        multi.addSegmentedTile(tile, 0);
+        assertArrayEquals(tile, first.getSegmentedTiles().get(0));
+        assertEquals(2, multi.getSegmentedTiles().size());
+
+        multi.getSegmentedTiles().remove(14);
+        assertNull(second.getSegmentedTiles().get(8));
+    }
+
+    @Test
+    public void testCachedPart() {
+        // All tiles of the first part from the result cache: nothing to send, indices unchanged
+        for (int index : first.getRawTiles().indices()) {
+            first.getRawTiles().remove(index);
+        }
+        assertEquals(18, multi.getTileCount());
+        assertEquals(12, multi.getRawTiles().size());
+
+        int[] indices = multi.getRawTiles().indices();
+        assertEquals(6, indices[0]);
+        assertEquals(17, indices[11]);
+        assertNull(multi.getRawTiles().get(0));
+        assertArrayEquals(second.getRawTiles().get(0), multi.getRawTiles().get(6));
+    }
+}
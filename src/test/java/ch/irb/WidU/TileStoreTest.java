@@ -0,0 +1,171 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Same tests for both tile stores, on the heap and in memory-mapped files
+ * 
+ * @author Diego Morone
+ */
+@RunWith(Parameterized.class)
+public class TileStoreTest {
+
+    private static final int CAPACITY = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String type;
+    private TileStore store;
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> types() {
+        return Arrays.asList(new Object[][]{{"Memory"}, {"Disk"}});
+    }
+
+    public TileStoreTest(String type) {
+        this.type = type;
+    }
+
+    @Before
+    public void setUp() {
+        store = "Disk".equals(type) ? new MappedTileStore(folder.getRoot(), CAPACITY) : new MemoryTileStore(CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private static byte[] tile(int index, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (index + i);
+        return data;
+    }
+
+    @Test
+    public void testPutGet() {
+        assertEquals(0, store.size());
+        assertNull(store.get(3));
+        assertFalse(store.contains(3));
+
+        store.put(3, tile(3, 10));
+        store.put(0, tile(0, 0));
+        store.put(99, tile(99, 1000));
+
+        assertEquals(3, store.size());
+        assertArrayEquals(tile(3, 10), store.get(3));
+        assertArrayEquals(new byte[0], store.get(0));
+        assertArrayEquals(tile(99, 1000), store.get(99));
+        assertTrue(store.contains(0));
+        assertArrayEquals(new int[]{0, 3, 99}, store.indices());
+    }
+
+    @Test
+    public void testReplaceRemove() {
+        store.put(5, tile(5, 10));
+        store.put(5, tile(6, 20));
+        assertEquals(1, store.size());
+        assertArrayEquals(tile(6, 20), store.get(5));
+
+        store.remove(5);
+        store.remove(5);
+        store.remove(7);
+        assertEquals(0, store.size());
+        assertNull(store.get(5));
+        assertArrayEquals(new int[0], store.indices());
+    }
+
+    @Test
+    public void testConcurrentPut() throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int first = t;
+            threads.add(new Thread(() -> {
+                for (int index = first; index < CAPACITY; index += 4) {
+                    store.put(index, tile(index, 100 + index));
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(CAPACITY, store.size());
+        for (int index = 0; index < CAPACITY; index++) {
+            assertArrayEquals(tile(index, 100 + index), store.get(index));
+        }
+    }
+
+    @Test
+    public void testClose() {
+        store.put(1, tile(1, 10));
+        store.close();
+        assertEquals(0, store.size());
+        assertFalse(store.contains(1));
+        assertNull(store.get(1));
+
+        // Segment files of the disk store are deleted
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(0, files.length);
+    }
+}
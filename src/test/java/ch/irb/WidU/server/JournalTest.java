@@ -0,0 +1,122 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recovery of the jobs of the job server after a restart, see Journal.java
+ * 
+ * @author Diego Morone
+ */
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNewJournal() throws IOException {
+        File file = new File(folder.getRoot(), "journal.log");
+        assertEquals(0, new Journal(file).recover().size());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        File file = new File(folder.getRoot(), "journal.log");
+        Journal journal = new Journal(file);
+        journal.recover();
+
+        Job done = new Job(1, "/data/job1", "alice", 0, 1000);
+        Job running = new Job(2, "/data/job2", "bob", 3, 2000);
+        Job queued = new Job(3, "/data/job 3", "alice", 1, 3000);
+        journal.submitted(done);
+        journal.submitted(running);
+        journal.submitted(queued);
+        journal.started(done);
+        journal.started(running);
+        done.state = Job.State.DONE;
+        journal.ended(done);
+
+        // Restart: jobs not ended are queued again, with their parameters
+        List<Job> jobs = new Journal(file).recover();
+        assertEquals(2, jobs.size());
+        Job first = jobs.get(0);
+        assertEquals(2, first.id);
+        assertEquals("/data/job2", first.folder);
+        assertEquals("bob", first.user);
+        assertEquals(3, first.priority);
+        assertEquals(2000, first.submitted);
+        assertEquals("/data/job 3", jobs.get(1).folder);
+
+        // The journal was compacted to the unfinished jobs
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("SUBMIT 2 2000 3 bob /data/job2", lines.get(0));
+    }
+
+    @Test
+    public void testTornLine() throws IOException {
+        File file = new File(folder.getRoot(), "journal.log");
+        Journal journal = new Journal(file);
+        journal.recover();
+        journal.submitted(new Job(1, "/data/job1", "alice", 0, 1000));
+
+        // Crash while writing the next line
+        Files.write(file.toPath(), "SUBMIT 2 20".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<Job> jobs = new Journal(file).recover();
+        assertEquals(1, jobs.size());
+        assertEquals(1, jobs.get(0).id);
+    }
+}
@@ -0,0 +1,131 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Order of the jobs of the job server, see Scheduler.java
+ * 
+ * @author Diego Morone
+ */
+public class SchedulerTest {
+
+    private static long ids = 0;
+
+    private static Job job(String user, int priority) {
+        ids++;
+        return new Job(ids, "/tmp/job" + ids, user, priority, System.currentTimeMillis());
+    }
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        Scheduler scheduler = new Scheduler();
+        Job low = job("alice", 0);
+        Job high = job("alice", 5);
+        Job normal = job("bob", 1);
+        scheduler.add(low);
+        scheduler.add(high);
+        scheduler.add(normal);
+
+        assertSame(high, scheduler.take());
+        assertSame(normal, scheduler.take());
+        assertSame(low, scheduler.take());
+        assertEquals(Job.State.RUNNING, low.state);
+    }
+
+    @Test
+    public void testSubmissionOrder() throws InterruptedException {
+        Scheduler scheduler = new Scheduler();
+        Job first = job("alice", 0);
+        Job second = job("alice", 0);
+        scheduler.add(second);
+        scheduler.add(first);
+
+        assertSame(first, scheduler.take());
+        assertSame(second, scheduler.take());
+    }
+
+    @Test
+    public void testFairShare() throws InterruptedException {
+        Scheduler scheduler = new Scheduler();
+        Job big = job("alice", 0);
+        scheduler.add(big);
+        assertSame(big, scheduler.take());
+        scheduler.charge(big, 10000);
+
+        // The user who used the workers least goes first, even if submitted later
+        Job next = job("alice", 0);
+        Job small = job("bob", 0);
+        scheduler.add(next);
+        scheduler.add(small);
+        assertSame(small, scheduler.take());
+        assertSame(next, scheduler.take());
+    }
+
+    @Test
+    public void testSnapshot() throws InterruptedException {
+        Scheduler scheduler = new Scheduler();
+        Job running = job("alice", 0);
+        scheduler.add(running);
+        scheduler.take();
+
+        Job low = job("bob", 0);
+        Job high = job("bob", 1);
+        scheduler.add(low);
+        scheduler.add(high);
+
+        List<Job> jobs = scheduler.snapshot();
+        assertEquals(3, jobs.size());
+        assertSame(running, jobs.get(0));
+        assertSame(high, jobs.get(1));
+        assertSame(low, jobs.get(2));
+
+        scheduler.end(running);
+        assertEquals(2, scheduler.snapshot().size());
+    }
+}
@@ -0,0 +1,172 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2022   Paola Antonello, 
+ *                      Diego Morone, 
+ *                      Marcus Thelen,
+ *                      Rolf Krause,
+ *                      Diego Ulisse Pizzagalli  
+ * 
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+*
+*    Graduate School for Cellular and Molecular Sciences,
+*    University of Bern, Switzerland
+ *
+ *    Euler Institute, Università della Svizzera Italiana,
+ *    Switzerland
+ * 	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.WidU.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.irb.WidU.LocalBackend;
+import ch.irb.WidU.TileStream;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tiles streamed to the tile stream service and back, with the stub model, see TileStream.java and StreamServer.java
+ * 
+ * @author Diego Morone
+ */
+public class StreamServerTest {
+
+    private static final int TILESIZE = 32;
+
+    private static int port;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Thread server = new Thread(new StreamServer(new StubModel(0), TILESIZE, 4, "127.0.0.1", port), "Wid-U tile stream");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /*
+     * Connect once the service listens
+     */
+    private static Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(30000);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static byte[] tile(Random random) {
+        float[] pixels = new float[TILESIZE * TILESIZE];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextFloat();
+        return LocalBackend.toPNG(pixels, TILESIZE);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(1);
+        int count = 25;
+
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            TileStream.writeHello(out);
+            for (int i = 0; i < count; i++) {
+                TileStream.writeTile(out, 100 + i, tile(random));
+            }
+            TileStream.writeEnd(out);
+            TileStream.readHello(in);
+
+            Set<Integer> received = new HashSet<Integer>();
+            TileStream.Frame frame;
+            while ((frame = TileStream.read(in)).index != TileStream.END) {
+                assertTrue(frame.index != TileStream.ERROR);
+                assertTrue(received.add(frame.index));
+
+                BufferedImage result = ImageIO.read(new ByteArrayInputStream(frame.data));
+                assertEquals(TILESIZE, result.getWidth());
+                assertEquals(TILESIZE, result.getHeight());
+            }
+
+            assertEquals(count, received.size());
+            for (int i = 0; i < count; i++) {
+                assertTrue(received.contains(100 + i));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            TileStream.writeHello(out);
+            TileStream.writeEnd(out);
+            TileStream.readHello(in);
+            assertEquals(TileStream.END, TileStream.read(in).index);
+        }
+    }
+
+    @Test
+    public void testInvalidTile() throws Exception {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            TileStream.writeHello(out);
+            TileStream.writeTile(out, 0, new byte[]{1, 2, 3});
+            TileStream.writeEnd(out);
+            TileStream.readHello(in);
+
+            TileStream.Frame frame = TileStream.read(in);
+            assertEquals(TileStream.ERROR, frame.index);
+            assertTrue(frame.getMessage().length() > 0);
+        }
+    }
+}
@@ -9,13 +9,45 @@ def send_task(folder_path, host='localhost', port=65432):
         data = s.recv(1024).decode()
         print(f"Server response: {data}")
 
+def wait_task(folder_path, host='localhost', port=65432, priority=None):
+    # Queue the task and print server events (QUEUED, RUNNING, PROGRESS, DONE) until the task is done
+    with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
+        s.connect((host, port))
+        message = "WAIT " + folder_path
+        if priority is not None:
+            message = f"PRIORITY {priority} " + message
+        s.sendall(message.encode())
+        with s.makefile('r') as events:
+            for line in events:
+                print(line.strip(), flush=True)
+                if line.startswith("DONE") or line.startswith("FAILED"):
+                    return line.startswith("DONE")
+    return False
+
+def print_status(host='localhost', port=65432):
+    # Print running and queued tasks
+    with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
+        s.connect((host, port))
+        s.sendall(b"STATUS")
+        with s.makefile('r') as status:
+            for line in status:
+                if line.strip() == "END":
+                    break
+                print(line.strip())
+
 
 def print_help():
     help_message = """
-    Usage: python client.py <input_folder>
+    Usage: python client.py [--wait] [--priority <n>] <input_folder>
+           python client.py --status
 
     Arguments:
     input_folder   Path to the folder containing PNG images to be processed.
+    --wait         Do not exit when the task is queued. Print queue position
+                   and progress, and exit when the task is done.
+    --priority n   Tasks with higher priority run first (default 0). Needs
+                   the Java job server, implies --wait.
+    --status       Print running and queued tasks.
 
     Example:
     python client.py /path/to/input/folder
@@ -23,10 +55,27 @@ def print_help():
     print(help_message)
 
 if __name__ == "__main__":
-    if len(sys.argv) != 2:
+    args = sys.argv[1:]
+    if args == ["--status"]:
+        print_status()
+        sys.exit(0)
+
+    priority = None
+    if "--priority" in args and args.index("--priority") + 1 < len(args):
+        i = args.index("--priority")
+        priority = int(args[i + 1])
+        del args[i:i + 2]
+
+    wait = "--wait" in args or priority is not None
+    if "--wait" in args:
+        args.remove("--wait")
+
+    if len(args) != 1:
         print("Error: Invalid number of arguments.")
         print_help()
         sys.exit(1)
 
-    input_folder = sys.argv[1]
+    input_folder = args[0]
+    if wait:
+        sys.exit(0 if wait_task(input_folder, priority=priority) else 1)
     send_task(input_folder)
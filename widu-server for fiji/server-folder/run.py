@@ -1,4 +1,4 @@
-import sys, os
+import sys, os, io, zipfile
 import tensorflow as tf
 from tensorflow.keras.models import load_model
 from tensorflow.keras.preprocessing import image
@@ -11,6 +11,39 @@ def save_images(images, filenames, output_folder):
         img = image.array_to_img(img_array)
         img.save(os.path.join(output_folder, filename))
 
+def list_tiles(input_folder):
+    # Packed blob: all tiles are in a single zip file
+    packed = os.path.join(input_folder, "tiles.zip")
+    if os.path.exists(packed):
+        with zipfile.ZipFile(packed) as zf:
+            return [n for n in zf.namelist() if n.lower().endswith(".png")]
+
+    filenames = []
+    for filename in os.listdir(input_folder):
+        if filename.lower().endswith(".png"):
+            filenames.append(filename)
+    return filenames
+
+def load_tiles(input_folder, fbatch, zf=None):
+    images=[]
+    for f in fbatch:
+        if zf is not None:
+            img_path = io.BytesIO(zf.read(f))
+        else:
+            img_path = os.path.join(input_folder, f)
+        img = image.load_img(img_path, target_size=(224, 224),  color_mode = "grayscale")
+        img_array = image.img_to_array(img)
+        images.append(img_array)
+    return images
+
+def pack_images(images, filenames, zf):
+    # PNG are already compressed, store them as they are
+    for img_array, filename in zip(images, filenames):
+        img = image.array_to_img(img_array)
+        buf = io.BytesIO()
+        img.save(buf, format="PNG")
+        zf.writestr(filename, buf.getvalue(), compress_type=zipfile.ZIP_STORED)
+
 def main(input_folder, model_path):
     # Adjust these
     max_gpu_ram=3072 # TF GPU RAM
@@ -33,24 +66,33 @@ def main(input_folder, model_path):
     # Load the model
     model = load_model(model_path)
 
-    filenames = []
-    for filename in os.listdir(input_folder):
-        if filename.lower().endswith(".png"):
-            filenames.append(filename)
+    filenames = list_tiles(input_folder)
+    print(f"PROGRESS 0 {len(filenames)}", flush=True)
+
+    packed = os.path.exists(os.path.join(input_folder, "tiles.zip"))
+    zin = zipfile.ZipFile(os.path.join(input_folder, "tiles.zip")) if packed else None
+    zout = None
+    if packed:
+        os.makedirs(output_folder, exist_ok=True)
+        zout = zipfile.ZipFile(os.path.join(output_folder, "results.zip"), "w", zipfile.ZIP_STORED)
 
     for i in range(0, len(filenames), max_batch):
         fbatch=filenames[i:i+max_batch]
-        images=[]
-        for f in fbatch:
-            img_path = os.path.join(input_folder, f)
-            img = image.load_img(img_path, target_size=(224, 224),  color_mode = "grayscale")
-            img_array = image.img_to_array(img)
-            images.append(img_array)
+        images = load_tiles(input_folder, fbatch, zin)
         
         images = np.array(images) / 255.0
         # TF
         predictions = model.predict(images, batch_size=tf_batch)
-        save_images(predictions, fbatch, output_folder)
+        if packed:
+            pack_images(predictions, fbatch, zout)
+        else:
+            save_images(predictions, fbatch, output_folder)
+        # Progress for the server, see server.py
+        print(f"PROGRESS {i+len(fbatch)} {len(filenames)}", flush=True)
+
+    if packed:
+        zin.close()
+        zout.close()
 
 
     # Send message that task is done and results can be retrieved
@@ -64,6 +106,8 @@ def print_help():
 
     Arguments:
     input_folder   Path to the folder containing PNG images to be processed.
+                   If the folder contains tiles.zip, images are read from it
+                   and results are written to results/results.zip
 
     Example:
     python run.py /path/to/input/folder
@@ -1,4 +1,5 @@
 import os
+import sys
 import subprocess
 import socket
 import threading
@@ -7,9 +8,49 @@ from queue import Queue
 # Queue to hold tasks
 task_queue = Queue()
 
+# Tasks waiting in the queue, to report their position to clients
+pending = []
+pending_lock = threading.Lock()
+
+# Task being processed, for status requests
+running = None
+
+class Task:
+    def __init__(self, folder_path, conn=None):
+        self.folder_path = folder_path
+        self.conn = conn # connection of a client waiting for events, if any
+
+    def notify(self, message):
+        if self.conn is None:
+            return
+        try:
+            self.conn.sendall((message + "\n").encode())
+        except OSError:
+            self.conn = None # client left, keep processing anyway
+
+    def close(self):
+        if self.conn is not None:
+            self.conn.close()
+            self.conn = None
+
+# Send the queue position to all waiting clients
+def notify_positions():
+    with pending_lock:
+        for position, task in enumerate(pending):
+            task.notify(f"QUEUED {position}")
+
 # Function to process tasks
-def process_task(input_folder):
-    subprocess.call(['/home/widu/run.sh', input_folder])
+def process_task(task):
+    # run.py prints PROGRESS <done> <total> lines, forward them to the client
+    with subprocess.Popen(['/home/widu/run.sh', task.folder_path], stdout=subprocess.PIPE, text=True) as proc:
+        for line in proc.stdout:
+            line = line.strip()
+            if line.startswith("PROGRESS"):
+                task.notify(line)
+            else:
+                print(line)
+    task.notify("DONE" if proc.returncode == 0 else f"FAILED {proc.returncode}")
+    task.close()
 
 # Function to handle client connections
 def handle_client(conn, addr):
@@ -18,18 +59,51 @@ def handle_client(conn, addr):
         data = conn.recv(1024).decode()
         if not data:
             break
+        if data.strip() == "STATUS":
+            # Same format as the Java job server (ch.irb.WidU.server.JobServer)
+            lines = ["WORKERS 1"]
+            with pending_lock:
+                if running is not None:
+                    lines.append(f"JOB - RUNNING {running.folder_path}")
+                for task in pending:
+                    lines.append(f"JOB - QUEUED {task.folder_path}")
+            lines.append("END")
+            conn.sendall(("\n".join(lines) + "\n").encode())
+            break
+        if data.startswith("WAIT "):
+            # Keep the connection open and send events until the task is done
+            folder_path = data[len("WAIT "):].strip()
+            print(f"Received folder path: {folder_path} (waiting)")
+            task = Task(folder_path, conn)
+            task.notify("Task received")
+            with pending_lock:
+                pending.append(task)
+            task_queue.put(task)
+            notify_positions()
+            return
         print(f"Received folder path: {data}")
-        task_queue.put(data)
+        task = Task(data)
+        with pending_lock:
+            pending.append(task)
+        task_queue.put(task)
         conn.sendall(b"Task received")
     conn.close()
 
 # Function to process tasks from the queue
 def process_tasks():
+    global running
     while True:
-        folder_path = task_queue.get()
-        if folder_path is None:
+        task = task_queue.get()
+        if task is None:
             break
-        process_task(folder_path)
+        with pending_lock:
+            pending.remove(task)
+            running = task
+        notify_positions()
+        task.notify("RUNNING")
+        process_task(task)
+        with pending_lock:
+            running = None
         task_queue.task_done()
 
 def start_server(host='localhost', port=65432):
@@ -46,4 +120,7 @@ def start_server(host='localhost', port=65432):
             threading.Thread(target=handle_client, args=(conn, addr), daemon=True).start()
 
 if __name__ == "__main__":
-    start_server()
+    # Optional host and port, e.g. 0.0.0.0 to accept jobs from Fiji over a shared folder
+    host = sys.argv[1] if len(sys.argv) > 1 else 'localhost'
+    port = int(sys.argv[2]) if len(sys.argv) > 2 else 65432
+    start_server(host, port)